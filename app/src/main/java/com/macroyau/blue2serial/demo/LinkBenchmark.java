@@ -0,0 +1,353 @@
+package com.macroyau.blue2serial.demo;
+
+import com.macroyau.blue2serial.BluetoothSerial;
+import com.macroyau.blue2serial.BluetoothSerialStreamListener;
+import com.macroyau.blue2serial.LatencyStats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Throughput and latency benchmark of a serial link. The remote end must echo every byte it receives, e.g. a device running echo firmware or the {@link com.macroyau.blue2serial.demo.LinkBenchmark.LoopbackLink}.
+ *
+ * @author Macro Yau
+ */
+public class LinkBenchmark implements BluetoothSerialStreamListener {
+
+    private static final long THROUGHPUT_DURATION = 5000; // ms
+    private static final long DRAIN_TIMEOUT = 2000; // ms
+    private static final int PING_COUNT = 100;
+    private static final long PING_INTERVAL = 20; // ms
+    private static final int PING_LENGTH = 18; // '#', 16 hex digits of the send time, '\n'
+
+    /**
+     * Serial link to be benchmarked.
+     */
+    public interface Link {
+
+        String getName();
+
+        /**
+         * Write the specified bytes, blocking until they are written.
+         *
+         * @param data The data to be written.
+         * @throws IOException if the data cannot be written, e.g. while disconnected
+         */
+        void write(byte[] data) throws IOException;
+
+        void addStreamListener(BluetoothSerialStreamListener listener);
+
+        void removeStreamListener(BluetoothSerialStreamListener listener);
+
+    }
+
+    /**
+     * Listener for the benchmark progress. The callbacks are invoked on the benchmark thread.
+     */
+    public interface Listener {
+
+        void onBenchmarkProgress(String message);
+
+        void onBenchmarkFinished(Result result);
+
+    }
+
+    /**
+     * Link over a {@link com.macroyau.blue2serial.BluetoothSerial} connection.
+     */
+    public static class SerialLink implements Link {
+
+        private final BluetoothSerial mSerial;
+
+        public SerialLink(BluetoothSerial serial) {
+            mSerial = serial;
+        }
+
+        @Override
+        public String getName() {
+            String name = mSerial.getConnectedDeviceName();
+            return (name != null) ? name : mSerial.getConnectedDeviceAddress(); // The name is null if it cannot be retrieved
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            mSerial.writeAndWait(data);
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+            mSerial.addStreamListener(listener);
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+            mSerial.removeStreamListener(listener);
+        }
+
+    }
+
+    /**
+     * Local stand-in for an echo device, echoing the written bytes from a separate thread. Useful for measuring the overhead of the app itself.
+     */
+    public static class LoopbackLink implements Link {
+
+        private final LinkedBlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<>(16);
+        private BluetoothSerialStreamListener mListener;
+        private Thread mEchoThread;
+
+        @Override
+        public String getName() {
+            return "Loopback";
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            try {
+                mQueue.put(data.clone());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public synchronized void addStreamListener(final BluetoothSerialStreamListener listener) {
+            mListener = listener;
+            mEchoThread = new Thread("LoopbackLink") {
+                @Override
+                public void run() {
+                    listener.onStreamOpened();
+                    try {
+                        while (!isInterrupted()) {
+                            byte[] data = mQueue.take();
+                            listener.onStreamRead(data, 0, data.length, System.nanoTime());
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    }
+                    listener.onStreamClosed();
+                }
+            };
+            mEchoThread.start();
+        }
+
+        @Override
+        public synchronized void removeStreamListener(BluetoothSerialStreamListener listener) {
+            if (mListener == listener && mEchoThread != null) {
+                mEchoThread.interrupt();
+                mEchoThread = null;
+                mListener = null;
+                mQueue.clear();
+            }
+        }
+
+    }
+
+    /**
+     * Result of a benchmark run.
+     */
+    public static class Result {
+
+        public final String linkName;
+        public final int chunkSize;
+        public final long timestamp;
+        public long bytesSent, bytesEchoed;
+        public double sendRate, echoRate; // bytes/s
+        public long pingsSent, pingsReceived;
+        public long rttP50, rttP95, rttP99; // ns
+
+        private Result(String linkName, int chunkSize) {
+            this.linkName = linkName;
+            this.chunkSize = chunkSize;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public static String getCsvHeader() {
+            return "timestamp,link,chunk_size,bytes_sent,bytes_echoed,send_rate_bps,echo_rate_bps," +
+                    "pings_sent,pings_received,rtt_p50_ms,rtt_p95_ms,rtt_p99_ms";
+        }
+
+        public String toCsv() {
+            return String.format(Locale.US, "%d,%s,%d,%d,%d,%.0f,%.0f,%d,%d,%.2f,%.2f,%.2f",
+                    timestamp, linkName.replace(',', ' '), chunkSize, bytesSent, bytesEchoed, sendRate, echoRate,
+                    pingsSent, pingsReceived, rttP50 / 1e6, rttP95 / 1e6, rttP99 / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s, %d-byte chunks: send %.1f kB/s, echo %.1f kB/s; " +
+                            "RTT p50 %.2f ms, p95 %.2f ms, p99 %.2f ms (%d/%d pings)",
+                    linkName, chunkSize, sendRate / 1000, echoRate / 1000,
+                    rttP50 / 1e6, rttP95 / 1e6, rttP99 / 1e6, pingsReceived, pingsSent);
+        }
+
+    }
+
+    private final Link mLink;
+    private final int mChunkSize;
+    private final Listener mListener;
+    private final LatencyStats mRoundTripStats = new LatencyStats(PING_COUNT);
+
+    private volatile boolean mPinging;
+    private volatile long mBytesEchoed;
+    private volatile long mLastEchoTime;
+    private final byte[] mPingBuffer = new byte[PING_LENGTH];
+    private int mPingLength;
+
+    private Thread mThread;
+
+    /**
+     * Constructor.
+     *
+     * @param link The link to be benchmarked.
+     * @param chunkSize The number of bytes written at once in the throughput test.
+     * @param listener The listener for the progress.
+     */
+    public LinkBenchmark(Link link, int chunkSize, Listener listener) {
+        mLink = link;
+        mChunkSize = chunkSize;
+        mListener = listener;
+    }
+
+    /**
+     * Run the throughput test followed by the ping test on a background thread.
+     */
+    public synchronized void start() {
+        if (mThread != null)
+            return;
+
+        mThread = new Thread("LinkBenchmark") {
+            @Override
+            public void run() {
+                mLink.addStreamListener(LinkBenchmark.this);
+                try {
+                    Result result = new Result(mLink.getName(), mChunkSize);
+                    runThroughput(result);
+                    runPing(result);
+                    mListener.onBenchmarkFinished(result);
+                } catch (InterruptedException e) {
+                    mListener.onBenchmarkProgress("Benchmark cancelled");
+                } finally {
+                    mLink.removeStreamListener(LinkBenchmark.this);
+                    synchronized (LinkBenchmark.this) {
+                        mThread = null;
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Cancel the benchmark in progress.
+     */
+    public synchronized void cancel() {
+        if (mThread != null)
+            mThread.interrupt();
+    }
+
+    /**
+     * Return true if the benchmark is in progress.
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    private void runThroughput(Result result) throws InterruptedException {
+        mListener.onBenchmarkProgress(String.format(Locale.US, "Measuring throughput with %d-byte chunks...", mChunkSize));
+
+        byte[] chunk = new byte[mChunkSize];
+        for (int i = 0; i < chunk.length; i++)
+            chunk[i] = (byte) ('0' + i % 10); // Avoid the '#' of the pings
+
+        mBytesEchoed = 0;
+        long start = System.nanoTime();
+        long deadline = start + THROUGHPUT_DURATION * 1000000L;
+        long sent = 0;
+        while (System.nanoTime() < deadline) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            try {
+                mLink.write(chunk);
+                sent += chunk.length; // Only the bytes actually written count
+            } catch (IOException e) {
+                Thread.sleep(10); // Disconnected; wait for a reconnection
+            }
+        }
+        long sendTime = System.nanoTime() - start;
+
+        // Wait for the remaining echoes
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT * 1000000L;
+        while (mBytesEchoed < sent && System.nanoTime() < drainDeadline)
+            Thread.sleep(10);
+
+        result.bytesSent = sent;
+        result.bytesEchoed = mBytesEchoed;
+        result.sendRate = sent * 1e9 / sendTime;
+        long echoTime = mLastEchoTime - start;
+        result.echoRate = (echoTime > 0) ? mBytesEchoed * 1e9 / echoTime : 0;
+    }
+
+    private void runPing(Result result) throws InterruptedException {
+        mListener.onBenchmarkProgress(String.format(Locale.US, "Measuring round-trip time with %d pings...", PING_COUNT));
+
+        mRoundTripStats.reset();
+        mPingLength = 0;
+        mPinging = true;
+        int sent = 0;
+        for (int i = 0; i < PING_COUNT; i++) {
+            try {
+                mLink.write(String.format(Locale.US, "#%016x\n", System.nanoTime()).getBytes());
+                sent++;
+            } catch (IOException e) {
+                // Disconnected; the ping is not counted
+            }
+            Thread.sleep(PING_INTERVAL);
+        }
+        Thread.sleep(DRAIN_TIMEOUT);
+        mPinging = false;
+
+        long[] percentiles = mRoundTripStats.getPercentiles(50, 95, 99);
+        result.pingsSent = sent;
+        result.pingsReceived = mRoundTripStats.getCount();
+        result.rttP50 = percentiles[0];
+        result.rttP95 = percentiles[1];
+        result.rttP99 = percentiles[2];
+    }
+
+    @Override
+    public void onStreamOpened() {
+    }
+
+    @Override
+    public void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        mBytesEchoed += length;
+        mLastEchoTime = timestamp;
+
+        if (!mPinging)
+            return;
+
+        // Reassemble the echoed pings and compute the round-trip time from the embedded send time
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer[i];
+            if (b == '#')
+                mPingLength = 0;
+            if (mPingLength < PING_LENGTH)
+                mPingBuffer[mPingLength++] = b;
+            if (b == '\n' && mPingLength == PING_LENGTH) {
+                long sent = 0;
+                for (int j = 1; j < PING_LENGTH - 1; j++)
+                    sent = (sent << 4) | Character.digit(mPingBuffer[j], 16);
+                mRoundTripStats.add(timestamp - sent);
+                mPingLength = 0;
+            }
+        }
+    }
+
+    @Override
+    public void onStreamClosed() {
+    }
+
+}
@@ -5,7 +5,10 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.view.KeyEvent;
@@ -20,18 +23,27 @@ import com.macroyau.blue2serial.BluetoothDeviceListDialog;
 import com.macroyau.blue2serial.BluetoothSerial;
 import com.macroyau.blue2serial.BluetoothSerialListener;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This is an example Bluetooth terminal application built using the Blue2Serial library.
  *
  * @author Macro Yau
  */
 public class TerminalActivity extends AppCompatActivity
-        implements BluetoothSerialListener, BluetoothDeviceListDialog.OnDeviceSelectedListener {
+        implements BluetoothSerialListener, BluetoothDeviceListDialog.OnDeviceSelectedListener, LinkBenchmark.Listener {
 
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
 
+    private static final String PREF_AUTO_CONNECT = "auto_connect";
+
+    private static final int[] BENCHMARK_CHUNK_SIZES = { 16, 64, 256, 1024, 4096 };
+
     private BluetoothSerial bluetoothSerial;
 
+    private SharedPreferences preferences;
+
     private ScrollView svTerminal;
     private TextView tvTerminal;
     private EditText etSend;
@@ -40,6 +52,9 @@ public class TerminalActivity extends AppCompatActivity
 
     private boolean crlf = false;
 
+    private LinkBenchmark benchmark;
+    private final List<LinkBenchmark.Result> benchmarkResults = new ArrayList<>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -65,6 +80,10 @@ public class TerminalActivity extends AppCompatActivity
 
         // Create a new instance of BluetoothSerial
         bluetoothSerial = new BluetoothSerial(this, this);
+
+        // Reconnect to the last used device on start without showing the device list, if enabled by the user
+        preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        bluetoothSerial.setAutoConnect(preferences.getBoolean(PREF_AUTO_CONNECT, false));
     }
 
     @Override
@@ -91,6 +110,10 @@ public class TerminalActivity extends AppCompatActivity
     protected void onStop() {
         super.onStop();
 
+        // Stop the benchmark in progress
+        if (benchmark != null)
+            benchmark.cancel();
+
         // Disconnect from the remote device and close the serial port
         bluetoothSerial.stop();
     }
@@ -102,6 +125,7 @@ public class TerminalActivity extends AppCompatActivity
 
         actionConnect = menu.findItem(R.id.action_connect);
         actionDisconnect = menu.findItem(R.id.action_disconnect);
+        menu.findItem(R.id.action_auto_connect).setChecked(bluetoothSerial.isAutoConnect());
 
         return true;
     }
@@ -120,10 +144,22 @@ public class TerminalActivity extends AppCompatActivity
         } else if (id == R.id.action_disconnect) {
             bluetoothSerial.stop();
             return true;
+        } else if (id == R.id.action_auto_connect) {
+            boolean autoConnect = !item.isChecked();
+            item.setChecked(autoConnect);
+            bluetoothSerial.setAutoConnect(autoConnect);
+            preferences.edit().putBoolean(PREF_AUTO_CONNECT, autoConnect).apply();
+            return true;
         } else if (id == R.id.action_crlf) {
             crlf = !item.isChecked();
             item.setChecked(crlf);
             return true;
+        } else if (id == R.id.action_benchmark) {
+            showBenchmarkDialog();
+            return true;
+        } else if (id == R.id.action_export_benchmark) {
+            exportBenchmarkResults();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -199,6 +235,82 @@ public class TerminalActivity extends AppCompatActivity
         dialog.show();
     }
 
+    private void showBenchmarkDialog() {
+        if (benchmark != null && benchmark.isRunning())
+            return;
+
+        // Benchmark the connected device, or the local loopback if not connected
+        final LinkBenchmark.Link link;
+        if (bluetoothSerial.isConnected())
+            link = new LinkBenchmark.SerialLink(bluetoothSerial);
+        else
+            link = new LinkBenchmark.LoopbackLink();
+
+        String[] items = new String[BENCHMARK_CHUNK_SIZES.length];
+        for (int i = 0; i < items.length; i++)
+            items[i] = getString(R.string.benchmark_chunk_size, BENCHMARK_CHUNK_SIZES[i]);
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.benchmark_title, link.getName()))
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        benchmark = new LinkBenchmark(link, BENCHMARK_CHUNK_SIZES[which], TerminalActivity.this);
+                        benchmark.start();
+                    }
+                })
+                .show();
+    }
+
+    private void exportBenchmarkResults() {
+        if (benchmarkResults.isEmpty())
+            return;
+
+        // Share the results as CSV for comparing phones and firmware builds
+        StringBuilder csv = new StringBuilder(LinkBenchmark.Result.getCsvHeader()).append(",phone,android\n");
+        for (LinkBenchmark.Result result : benchmarkResults) {
+            csv.append(result.toCsv())
+                    .append(',').append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                    .append(',').append(Build.VERSION.RELEASE)
+                    .append('\n');
+        }
+
+        Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType("text/csv");
+        share.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.benchmark_export_subject));
+        share.putExtra(Intent.EXTRA_TEXT, csv.toString());
+        startActivity(Intent.createChooser(share, getString(R.string.action_export_benchmark)));
+    }
+
+    private void printTerminal(String message) {
+        tvTerminal.append(message);
+        tvTerminal.append("\n");
+        svTerminal.post(scrollTerminalToBottom);
+    }
+
+    /* Implementation of LinkBenchmark.Listener */
+
+    @Override
+    public void onBenchmarkProgress(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                printTerminal(message);
+            }
+        });
+    }
+
+    @Override
+    public void onBenchmarkFinished(final LinkBenchmark.Result result) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                benchmarkResults.add(result);
+                printTerminal(result.toString());
+            }
+        });
+    }
+
     /* Implementation of BluetoothSerialListener */
 
     @Override
@@ -240,6 +352,10 @@ public class TerminalActivity extends AppCompatActivity
 
     @Override
     public void onBluetoothSerialRead(String message) {
+        // Keep the terminal quiet during a benchmark
+        if (benchmark != null && benchmark.isRunning())
+            return;
+
         // Print the incoming message on the terminal screen
         tvTerminal.append(getString(R.string.terminal_message_template,
                 bluetoothSerial.getConnectedDeviceName(),
@@ -249,6 +365,10 @@ public class TerminalActivity extends AppCompatActivity
 
     @Override
     public void onBluetoothSerialWrite(String message) {
+        // Keep the terminal quiet during a benchmark
+        if (benchmark != null && benchmark.isRunning())
+            return;
+
         // Print the outgoing message on the terminal screen
         tvTerminal.append(getString(R.string.terminal_message_template,
                 bluetoothSerial.getLocalAdapterName(),
@@ -0,0 +1,366 @@
+package com.macroyau.blue2serial;
+
+/**
+ * Parser of delimited numeric lines, e.g. {@code t,ax,ay,az\r\n}, fed directly from the inbound byte stream. The fields are decoded into a single reused {@link com.macroyau.blue2serial.BluetoothSerialCsvParser.Record} of primitive arrays without creating any objects, so high-rate telemetry can be parsed without garbage collection.
+ *
+ * <p>Register the parser with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)}. To keep the whole path from the socket free of allocations, also turn off {@code BluetoothSerial.setReadDispatch(boolean)} on Android if the {@code BluetoothSerialListener} does not need the bytes.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialCsvParser implements BluetoothSerialStreamListener {
+
+    private static final int DEFAULT_MAX_FIELDS = 16;
+
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Parser states within a field
+    private static final int FIELD_START = 0;
+    private static final int FIELD_INTEGER = 1;
+    private static final int FIELD_FRACTION = 2;
+    private static final int FIELD_EXPONENT_START = 3;
+    private static final int FIELD_EXPONENT = 4;
+    private static final int FIELD_END = 5;
+    private static final int FIELD_INVALID = 6;
+
+    /**
+     * Listener for the parsed records.
+     */
+    public interface RecordListener {
+
+        /**
+         * A line is parsed. This is invoked on the connection's I/O thread and the record is reused for the next line, so the values must be copied if they are needed after this method returns.
+         *
+         * @param record The parsed record.
+         */
+        void onRecord(Record record);
+
+    }
+
+    /**
+     * Numeric fields of a parsed line.
+     */
+    public static class Record {
+
+        private final double[] mValues;
+        private final long[] mLongs;
+        private final boolean[] mIntegral;
+        private int mFieldCount;
+        private long mTimestamp;
+
+        private Record(int maxFields) {
+            mValues = new double[maxFields];
+            mLongs = new long[maxFields];
+            mIntegral = new boolean[maxFields];
+        }
+
+        /**
+         * Get the number of fields in the line.
+         *
+         * @return the number of fields
+         */
+        public int getFieldCount() {
+            return mFieldCount;
+        }
+
+        /**
+         * Get the value of a field as a double. An empty field is NaN.
+         *
+         * @param index The index of the field.
+         * @return the value of the field
+         */
+        public double getDouble(int index) {
+            checkIndex(index);
+            return mValues[index];
+        }
+
+        /**
+         * Get the value of a field as a long. A field with a fraction or an exponent is truncated.
+         *
+         * @param index The index of the field.
+         * @return the value of the field
+         */
+        public long getLong(int index) {
+            checkIndex(index);
+            return mLongs[index];
+        }
+
+        /**
+         * Return true if a field is written as an integer without a fraction or an exponent, so {@link #getLong(int)} is exact.
+         *
+         * @param index The index of the field.
+         * @return true if the field is an integer
+         */
+        public boolean isIntegral(int index) {
+            checkIndex(index);
+            return mIntegral[index];
+        }
+
+        /**
+         * Get the time at which the read completing the line returned from the socket.
+         *
+         * @return the {@link System#nanoTime()} of the read
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mFieldCount)
+                throw new IndexOutOfBoundsException();
+        }
+
+    }
+
+    private final RecordListener mListener;
+    private final byte mDelimiter;
+    private final Record mRecord;
+
+    private long mRecordCount, mMalformedCount;
+
+    // Line state
+    private boolean mLineInvalid;
+    private boolean mLineEmpty = true;
+
+    // Field state
+    private int mFieldState = FIELD_START;
+    private boolean mNegative, mExponentNegative;
+    private long mMantissa;
+    private int mMantissaDigits;
+    private int mDecimalExponent;
+    private int mExponent;
+    private boolean mHasDigits, mHasFraction, mHasExponent;
+
+    /**
+     * Constructor. Fields are separated by commas and up to 16 fields per line are accepted.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialCsvParser.RecordListener} to use.
+     */
+    public BluetoothSerialCsvParser(RecordListener listener) {
+        this(listener, (byte) ',', DEFAULT_MAX_FIELDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialCsvParser.RecordListener} to use.
+     * @param delimiter The field delimiter.
+     * @param maxFields The maximum number of fields in a line. Longer lines are counted as malformed.
+     */
+    public BluetoothSerialCsvParser(RecordListener listener, byte delimiter, int maxFields) {
+        if (maxFields <= 0)
+            throw new IllegalArgumentException("Maximum number of fields must be positive!");
+
+        mListener = listener;
+        mDelimiter = delimiter;
+        mRecord = new Record(maxFields);
+    }
+
+    /**
+     * Get the number of lines parsed successfully.
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Get the number of non-empty lines discarded because they are not valid numeric lines.
+     *
+     * @return the number of malformed lines
+     */
+    public synchronized long getMalformedCount() {
+        return mMalformedCount;
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        // Discard the partial line of the previous connection
+        resetLine();
+    }
+
+    @Override
+    public synchronized void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\n') {
+                endLine(timestamp);
+            } else if (b == '\r') {
+                // Ignored, lines may end with either \r\n or \n
+            } else if (b == mDelimiter) {
+                endField();
+            } else if (!mLineInvalid) {
+                parseFieldByte(b);
+            }
+        }
+    }
+
+    @Override
+    public void onStreamClosed() {
+    }
+
+    private void parseFieldByte(byte b) {
+        if (b == ' ' || b == '\t') {
+            if (mFieldState != FIELD_START)
+                mFieldState = (mFieldState == FIELD_INVALID || mFieldState == FIELD_EXPONENT_START) ? FIELD_INVALID : FIELD_END;
+            return;
+        }
+
+        mLineEmpty = false;
+        switch (mFieldState) {
+            case FIELD_START:
+                mFieldState = FIELD_INTEGER;
+                if (b == '-' || b == '+')
+                    mNegative = b == '-';
+                else
+                    parseIntegerByte(b);
+                break;
+            case FIELD_INTEGER:
+                parseIntegerByte(b);
+                break;
+            case FIELD_FRACTION:
+                if (b >= '0' && b <= '9') {
+                    addDigit(b - '0');
+                    mDecimalExponent--;
+                } else if ((b == 'e' || b == 'E') && mHasDigits) {
+                    mHasExponent = true;
+                    mFieldState = FIELD_EXPONENT_START;
+                } else {
+                    mFieldState = FIELD_INVALID;
+                }
+                break;
+            case FIELD_EXPONENT_START:
+                mFieldState = FIELD_EXPONENT;
+                if (b == '-' || b == '+')
+                    mExponentNegative = b == '-';
+                else
+                    parseExponentByte(b);
+                break;
+            case FIELD_EXPONENT:
+                parseExponentByte(b);
+                break;
+            default:
+                mFieldState = FIELD_INVALID;
+                break;
+        }
+    }
+
+    private void parseIntegerByte(byte b) {
+        if (b >= '0' && b <= '9') {
+            addDigit(b - '0');
+        } else if (b == '.') {
+            mHasFraction = true;
+            mFieldState = FIELD_FRACTION;
+        } else if ((b == 'e' || b == 'E') && mHasDigits) {
+            mHasExponent = true;
+            mFieldState = FIELD_EXPONENT_START;
+        } else {
+            mFieldState = FIELD_INVALID;
+        }
+    }
+
+    private void parseExponentByte(byte b) {
+        if (b >= '0' && b <= '9' && mExponent < 10000)
+            mExponent = mExponent * 10 + (b - '0');
+        else
+            mFieldState = FIELD_INVALID;
+    }
+
+    private void addDigit(int digit) {
+        mHasDigits = true;
+        if (mMantissaDigits < MAX_MANTISSA_DIGITS) {
+            if (mMantissa != 0 || digit != 0)
+                mMantissaDigits++;
+            mMantissa = mMantissa * 10 + digit;
+        } else {
+            mDecimalExponent++; // Drop the excess precision
+        }
+    }
+
+    private void endField() {
+        if (mLineInvalid) {
+            resetField();
+            return;
+        }
+        mLineEmpty = false;
+
+        Record r = mRecord;
+        if (r.mFieldCount == r.mValues.length || mFieldState == FIELD_INVALID || mFieldState == FIELD_EXPONENT_START
+                || (mFieldState != FIELD_START && !mHasDigits)) {
+            mLineInvalid = true;
+            resetField();
+            return;
+        }
+
+        int index = r.mFieldCount++;
+        if (mFieldState == FIELD_START) {
+            // Empty field
+            r.mValues[index] = Double.NaN;
+            r.mLongs[index] = 0;
+            r.mIntegral[index] = false;
+        } else {
+            int exponent = mDecimalExponent + (mExponentNegative ? -mExponent : mExponent);
+            double value = scale(mMantissa, exponent);
+            if (mNegative)
+                value = -value;
+            r.mValues[index] = value;
+            r.mIntegral[index] = !mHasFraction && !mHasExponent && mDecimalExponent == 0;
+            r.mLongs[index] = r.mIntegral[index] ? (mNegative ? -mMantissa : mMantissa) : (long) value;
+        }
+        resetField();
+    }
+
+    private static double scale(long mantissa, int exponent) {
+        // Exact for mantissas below 2^53 and exponents within the exactly representable powers of ten
+        if (exponent == 0)
+            return mantissa;
+        if (exponent > 0 && exponent < POWERS_OF_TEN.length)
+            return mantissa * POWERS_OF_TEN[exponent];
+        if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+            return mantissa / POWERS_OF_TEN[-exponent];
+        return mantissa * Math.pow(10, exponent);
+    }
+
+    private void endLine(long timestamp) {
+        boolean hadContent = !mLineEmpty || mFieldState != FIELD_START;
+        endField();
+
+        if (hadContent) {
+            if (mLineInvalid) {
+                mMalformedCount++;
+            } else {
+                mRecordCount++;
+                mRecord.mTimestamp = timestamp;
+                mListener.onRecord(mRecord);
+            }
+        }
+        resetLine();
+    }
+
+    private void resetField() {
+        mFieldState = FIELD_START;
+        mNegative = false;
+        mExponentNegative = false;
+        mMantissa = 0;
+        mMantissaDigits = 0;
+        mDecimalExponent = 0;
+        mExponent = 0;
+        mHasDigits = false;
+        mHasFraction = false;
+        mHasExponent = false;
+    }
+
+    private void resetLine() {
+        resetField();
+        mRecord.mFieldCount = 0;
+        mLineInvalid = false;
+        mLineEmpty = true;
+    }
+
+}
@@ -0,0 +1,426 @@
+package com.macroyau.blue2serial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Expect-style trigger engine watching the inbound byte stream for many patterns at once. All registered patterns are compiled into a single {@link com.macroyau.blue2serial.PatternAutomaton}, so each byte is scanned exactly once and a pattern split across reads is still found. Triggers fire on every match, while expectations complete once on the first match of any of their patterns or fail on timeout.
+ *
+ * <p>Register the engine with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)}. Callbacks are invoked on the connection's I/O thread, and only bytes read after a pattern is registered are matched against it. The most recent bytes are replayed into the automaton whenever it is rebuilt, so adding or removing a pattern does not lose the partial matches of the others.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialExpect implements BluetoothSerialStreamListener {
+
+    /**
+     * Listener for the matches of a trigger.
+     */
+    public interface TriggerListener {
+
+        /**
+         * The pattern of the trigger is found in the inbound stream.
+         *
+         * @param trigger The trigger matched.
+         */
+        void onTriggered(Trigger trigger);
+
+    }
+
+    /**
+     * Listener for the outcome of an expectation.
+     */
+    public interface ExpectListener {
+
+        /**
+         * One of the expected patterns is found in the inbound stream.
+         *
+         * @param index The index of the matched pattern in the order given.
+         */
+        void onMatched(int index);
+
+        /**
+         * None of the expected patterns is found in time.
+         */
+        void onTimeout();
+
+    }
+
+    private abstract static class Registration {
+
+        final byte[][] mPatterns;
+        long mStartPosition;
+
+        Registration(byte[][] patterns) {
+            if (patterns.length == 0)
+                throw new IllegalArgumentException("No pattern is specified!");
+            mPatterns = patterns;
+        }
+
+        /**
+         * Handle a match of a pattern. Returns true if the registration should be kept.
+         */
+        abstract boolean onMatch(int index);
+
+    }
+
+    /**
+     * A persistent pattern registered by {@link #addTrigger(byte[], TriggerListener)}.
+     */
+    public static class Trigger extends Registration {
+
+        private final TriggerListener mListener;
+
+        private Trigger(byte[] pattern, TriggerListener listener) {
+            super(new byte[][] { pattern.clone() });
+            mListener = listener;
+        }
+
+        /**
+         * Get the pattern of the trigger.
+         *
+         * @return the pattern
+         */
+        public byte[] getPattern() {
+            return mPatterns[0].clone();
+        }
+
+        @Override
+        boolean onMatch(int index) {
+            mListener.onTriggered(this);
+            return true;
+        }
+
+    }
+
+    /**
+     * A one-shot expectation registered by {@link #expect(long, byte[]...)}. The result is the index of the matched pattern in the order given. If no pattern matches in time, {@link #get()} throws an {@link java.util.concurrent.ExecutionException} caused by a {@link java.util.concurrent.TimeoutException}.
+     */
+    public class Expectation extends Registration implements Future<Integer> {
+
+        private final ExpectListener mListener;
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private ScheduledFuture<?> mTimeoutFuture;
+        private int mIndex = -1;
+        private boolean mTimedOut, mCancelled;
+
+        private Expectation(byte[][] patterns, ExpectListener listener) {
+            super(patterns);
+            mListener = listener;
+        }
+
+        @Override
+        boolean onMatch(int index) {
+            synchronized (this) {
+                if (isDone())
+                    return false;
+                mIndex = index;
+                if (mTimeoutFuture != null)
+                    mTimeoutFuture.cancel(false);
+                mLatch.countDown();
+            }
+            if (mListener != null)
+                mListener.onMatched(index);
+            return false;
+        }
+
+        private void onTimeout() {
+            synchronized (this) {
+                if (isDone())
+                    return;
+                mTimedOut = true;
+                mLatch.countDown();
+            }
+            unregister(this);
+            if (mListener != null)
+                mListener.onTimeout();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone())
+                    return false;
+                mCancelled = true;
+                if (mTimeoutFuture != null)
+                    mTimeoutFuture.cancel(false);
+                mLatch.countDown();
+            }
+            unregister(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mLatch.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            mLatch.await();
+            return getResult();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mLatch.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private synchronized Integer getResult() throws ExecutionException {
+            if (mCancelled)
+                throw new CancellationException();
+            if (mTimedOut)
+                throw new ExecutionException(new TimeoutException("None of the expected patterns is received!"));
+            return mIndex;
+        }
+
+    }
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private final ScheduledExecutorService mTimeoutExecutor;
+
+    private PatternAutomaton mAutomaton;
+    private Registration[] mOwners = new Registration[0];
+    private int[] mOwnerIndices = new int[0];
+    private int mState;
+
+    private long mPosition; // Number of bytes scanned on the current connection
+    private byte[] mHistory = new byte[0];
+
+    /**
+     * Constructor.
+     */
+    public BluetoothSerialExpect() {
+        mTimeoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BluetoothSerialExpect");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Add a trigger to be fired whenever the specified pattern is found in the inbound stream.
+     *
+     * @param pattern The byte pattern to find.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialExpect.TriggerListener} to use.
+     * @return the trigger, for removing it later
+     */
+    public Trigger addTrigger(byte[] pattern, TriggerListener listener) {
+        Trigger trigger = new Trigger(pattern, listener);
+        register(trigger);
+        return trigger;
+    }
+
+    /**
+     * Add a trigger to be fired whenever the specified pattern is found in the inbound stream.
+     *
+     * @param pattern The string pattern to find.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialExpect.TriggerListener} to use.
+     * @return the trigger, for removing it later
+     */
+    public Trigger addTrigger(String pattern, TriggerListener listener) {
+        return addTrigger(pattern.getBytes(), listener);
+    }
+
+    /**
+     * Remove a trigger.
+     *
+     * @param trigger The trigger returned by {@link #addTrigger(byte[], TriggerListener)}.
+     */
+    public void removeTrigger(Trigger trigger) {
+        unregister(trigger);
+    }
+
+    /**
+     * Expect any of the specified patterns to be found in the inbound stream within a timeout.
+     *
+     * @param timeout The timeout in milliseconds.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialExpect.ExpectListener} to use, or null to use the returned future only.
+     * @param patterns The byte patterns to find.
+     * @return the expectation, which is also a future of the matched pattern index
+     */
+    public Expectation expect(long timeout, ExpectListener listener, byte[]... patterns) {
+        byte[][] copies = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++)
+            copies[i] = patterns[i].clone();
+
+        final Expectation expectation = new Expectation(copies, listener);
+        register(expectation);
+        synchronized (expectation) {
+            if (!expectation.isDone()) {
+                expectation.mTimeoutFuture = mTimeoutExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expectation.onTimeout();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        return expectation;
+    }
+
+    /**
+     * Expect any of the specified patterns to be found in the inbound stream within a timeout.
+     *
+     * @param timeout The timeout in milliseconds.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialExpect.ExpectListener} to use, or null to use the returned future only.
+     * @param patterns The string patterns to find.
+     * @return the expectation, which is also a future of the matched pattern index
+     */
+    public Expectation expect(long timeout, ExpectListener listener, String... patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++)
+            bytes[i] = patterns[i].getBytes();
+        return expect(timeout, listener, bytes);
+    }
+
+    /**
+     * Expect any of the specified patterns to be found in the inbound stream within a timeout.
+     *
+     * @param timeout The timeout in milliseconds.
+     * @param patterns The byte patterns to find.
+     * @return the expectation, which is also a future of the matched pattern index
+     */
+    public Expectation expect(long timeout, byte[]... patterns) {
+        return expect(timeout, null, patterns);
+    }
+
+    /**
+     * Expect any of the specified patterns to be found in the inbound stream within a timeout.
+     *
+     * @param timeout The timeout in milliseconds.
+     * @param patterns The string patterns to find.
+     * @return the expectation, which is also a future of the matched pattern index
+     */
+    public Expectation expect(long timeout, String... patterns) {
+        return expect(timeout, null, patterns);
+    }
+
+    /**
+     * Cancel all triggers and expectations and release the timeout thread. The engine cannot be used afterwards.
+     */
+    public void shutdown() {
+        List<Registration> registrations;
+        synchronized (this) {
+            registrations = new ArrayList<>(mRegistrations);
+        }
+        for (Registration r : registrations) {
+            if (r instanceof Expectation)
+                ((Expectation) r).cancel(false);
+            else
+                unregister(r);
+        }
+        mTimeoutExecutor.shutdownNow();
+    }
+
+    private synchronized void register(Registration registration) {
+        registration.mStartPosition = mPosition;
+        mRegistrations.add(registration);
+        rebuild();
+    }
+
+    private synchronized void unregister(Registration registration) {
+        if (mRegistrations.remove(registration))
+            rebuild();
+    }
+
+    /**
+     * Compile the patterns of all registrations into a new automaton, and replay the recent bytes to restore the partial matches in progress.
+     */
+    private void rebuild() {
+        int count = 0;
+        int maxLength = 0;
+        for (Registration r : mRegistrations) {
+            count += r.mPatterns.length;
+            for (byte[] pattern : r.mPatterns)
+                maxLength = Math.max(maxLength, pattern.length);
+        }
+
+        byte[][] patterns = new byte[count][];
+        Registration[] owners = new Registration[count];
+        int[] ownerIndices = new int[count];
+        int i = 0;
+        for (Registration r : mRegistrations) {
+            for (int j = 0; j < r.mPatterns.length; j++) {
+                patterns[i] = r.mPatterns[j];
+                owners[i] = r;
+                ownerIndices[i] = j;
+                i++;
+            }
+        }
+
+        byte[] history = new byte[Math.max(0, maxLength - 1)];
+        int replay = (int) Math.min(Math.min(history.length, mHistory.length), mPosition);
+        for (int j = 1; j <= replay; j++)
+            history[(int) ((mPosition - j) % history.length)] = mHistory[(int) ((mPosition - j) % mHistory.length)];
+
+        mAutomaton = (count > 0) ? new PatternAutomaton(patterns) : null;
+        mOwners = owners;
+        mOwnerIndices = ownerIndices;
+        mHistory = history;
+        mState = 0;
+        if (mAutomaton != null) {
+            for (long position = mPosition - replay; position < mPosition; position++)
+                mState = mAutomaton.next(mState, history[(int) (position % history.length)]);
+        }
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        mState = 0;
+        mPosition = 0;
+        for (Registration r : mRegistrations)
+            r.mStartPosition = 0;
+    }
+
+    @Override
+    public synchronized void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        int end = offset + length;
+        for (int i = offset; i < end && mAutomaton != null; i++) {
+            PatternAutomaton automaton = mAutomaton;
+            mState = automaton.next(mState, buffer[i]);
+            if (mHistory.length > 0)
+                mHistory[(int) (mPosition % mHistory.length)] = buffer[i];
+            mPosition++;
+
+            int[] matches = automaton.getMatches(mState);
+            if (matches.length == 0)
+                continue;
+
+            Registration[] owners = mOwners;
+            int[] ownerIndices = mOwnerIndices;
+            for (int p : matches) {
+                Registration owner = owners[p];
+                int index = ownerIndices[p];
+                if (mPosition - owner.mPatterns[index].length < owner.mStartPosition)
+                    continue; // The match begins before the registration
+                if (!owner.onMatch(index))
+                    unregister(owner);
+            }
+        }
+    }
+
+    @Override
+    public void onStreamClosed() {
+    }
+
+}
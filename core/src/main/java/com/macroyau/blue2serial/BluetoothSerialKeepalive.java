@@ -0,0 +1,320 @@
+package com.macroyau.blue2serial;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeat for detecting a dead Bluetooth serial link. While connected, a ping payload is written periodically and the inbound stream is watched for the expected reply. Round-trip times are collected into a {@link com.macroyau.blue2serial.LatencyStats}, and the connection is dropped after a configurable number of consecutive missed replies so that reconnection can start within a bounded time.
+ *
+ * <p>Register the keepalive with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)} before connecting. Note that pings and replies are also reported to the other listeners of the link.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialKeepalive implements BluetoothSerialStreamListener {
+
+    private static final long DEFAULT_INTERVAL = 2000; // ms
+    private static final long DEFAULT_TIMEOUT = 1000; // ms
+    private static final int DEFAULT_MAX_MISSED = 3;
+
+    /**
+     * Listener for the keepalive events. The callbacks are invoked on the keepalive or I/O thread.
+     */
+    public interface KeepaliveListener {
+
+        /**
+         * The reply to a ping is received.
+         *
+         * @param roundTripNanos The round-trip time in nanoseconds.
+         */
+        void onPingReply(long roundTripNanos);
+
+        /**
+         * The reply to a ping is not received in time.
+         *
+         * @param missed The number of consecutive missed replies.
+         */
+        void onPingMissed(int missed);
+
+        /**
+         * Too many consecutive replies are missed. The connection is dropped after this method returns.
+         */
+        void onLinkDead();
+
+    }
+
+    /**
+     * Matcher for recognizing the reply to a ping in the inbound stream. The reply may be split across multiple reads.
+     */
+    public interface ReplyMatcher {
+
+        /**
+         * Forget any partially matched reply. This is called before each ping is written.
+         */
+        void reset();
+
+        /**
+         * Scan the specified bytes read from the serial port.
+         *
+         * @param buffer The buffer holding the bytes read.
+         * @param offset The offset of the first byte read in the buffer.
+         * @param length The number of bytes read.
+         * @return true if the reply is completed within the bytes
+         */
+        boolean match(byte[] buffer, int offset, int length);
+
+    }
+
+    /**
+     * Matcher for a reply consisting of a fixed byte sequence.
+     */
+    public static class SequenceMatcher implements ReplyMatcher {
+
+        private final byte[] mSequence;
+        private final int[] mFailure;
+        private int mMatched;
+
+        /**
+         * Constructor.
+         *
+         * @param sequence The byte sequence of the reply.
+         */
+        public SequenceMatcher(byte[] sequence) {
+            if (sequence.length == 0)
+                throw new IllegalArgumentException("Reply sequence must not be empty!");
+
+            mSequence = sequence.clone();
+            mFailure = new int[sequence.length];
+            for (int i = 1, k = 0; i < sequence.length; i++) {
+                while (k > 0 && sequence[i] != sequence[k])
+                    k = mFailure[k - 1];
+                if (sequence[i] == sequence[k])
+                    k++;
+                mFailure[i] = k;
+            }
+        }
+
+        @Override
+        public void reset() {
+            mMatched = 0;
+        }
+
+        @Override
+        public boolean match(byte[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                while (mMatched > 0 && buffer[i] != mSequence[mMatched])
+                    mMatched = mFailure[mMatched - 1];
+                if (buffer[i] == mSequence[mMatched])
+                    mMatched++;
+                if (mMatched == mSequence.length) {
+                    mMatched = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    private final SerialLink mSerial;
+    private final byte[] mPing;
+    private final ReplyMatcher mMatcher;
+    private final LatencyStats mRoundTripStats = new LatencyStats();
+    private final ScheduledExecutorService mExecutor;
+
+    private KeepaliveListener mListener;
+    private long mInterval = DEFAULT_INTERVAL;
+    private long mTimeout = DEFAULT_TIMEOUT;
+    private int mMaxMissed = DEFAULT_MAX_MISSED;
+
+    private ScheduledFuture<?> mPingFuture;
+    private boolean mAwaitingReply;
+    private long mPingSentTime;
+    private int mPingSequence;
+    private int mMissed;
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to keep alive, e.g. a {@code BluetoothSerial}.
+     * @param ping The ping payload to be written.
+     * @param matcher The {@link com.macroyau.blue2serial.BluetoothSerialKeepalive.ReplyMatcher} for recognizing the reply.
+     */
+    public BluetoothSerialKeepalive(SerialLink serial, byte[] ping, ReplyMatcher matcher) {
+        mSerial = serial;
+        mPing = ping.clone();
+        mMatcher = matcher;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BluetoothSerialKeepalive");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to keep alive, e.g. a {@code BluetoothSerial}.
+     * @param ping The ping string to be written.
+     * @param reply The expected reply string.
+     */
+    public BluetoothSerialKeepalive(SerialLink serial, String ping, String reply) {
+        this(serial, ping.getBytes(), new SequenceMatcher(reply.getBytes()));
+    }
+
+    /**
+     * Set a listener to be invoked on the keepalive events.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialKeepalive.KeepaliveListener} to use.
+     */
+    public synchronized void setListener(KeepaliveListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the interval between pings. Takes effect on the next connection.
+     *
+     * @param interval The interval in milliseconds.
+     */
+    public synchronized void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Set the time to wait for the reply to a ping before it is counted as missed.
+     *
+     * @param timeout The timeout in milliseconds.
+     */
+    public synchronized void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Set the number of consecutive missed replies after which the link is declared dead.
+     *
+     * @param maxMissed The number of missed replies.
+     */
+    public synchronized void setMaxMissed(int maxMissed) {
+        mMaxMissed = maxMissed;
+    }
+
+    /**
+     * Get the statistics of the round-trip times measured by the pings.
+     *
+     * @return the round-trip time statistics
+     */
+    public LatencyStats getRoundTripStats() {
+        return mRoundTripStats;
+    }
+
+    /**
+     * Get the number of consecutive missed replies so far.
+     *
+     * @return the number of missed replies
+     */
+    public synchronized int getMissedCount() {
+        return mMissed;
+    }
+
+    /**
+     * Stop the keepalive and release its thread. The keepalive cannot be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        mMissed = 0;
+        mAwaitingReply = false;
+        if (mPingFuture != null)
+            mPingFuture.cancel(false);
+        mPingFuture = mExecutor.scheduleAtFixedRate(mPingRunnable, mInterval, mInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        long roundTrip;
+        KeepaliveListener listener;
+
+        synchronized (this) {
+            if (!mAwaitingReply || !mMatcher.match(buffer, offset, length))
+                return;
+            mAwaitingReply = false;
+            mMissed = 0;
+            roundTrip = timestamp - mPingSentTime;
+            listener = mListener;
+        }
+
+        mRoundTripStats.add(roundTrip);
+        if (listener != null)
+            listener.onPingReply(roundTrip);
+    }
+
+    @Override
+    public synchronized void onStreamClosed() {
+        mAwaitingReply = false;
+        if (mPingFuture != null) {
+            mPingFuture.cancel(false);
+            mPingFuture = null;
+        }
+    }
+
+    private void ping() {
+        final int sequence;
+
+        synchronized (this) {
+            if (mAwaitingReply || mPingFuture == null)
+                return;
+            mMatcher.reset();
+            mAwaitingReply = true;
+            mPingSentTime = System.nanoTime();
+            sequence = ++mPingSequence;
+        }
+
+        mSerial.write(mPing);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkReply(sequence);
+            }
+        }, mTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkReply(int sequence) {
+        int missed;
+        boolean dead;
+        KeepaliveListener listener;
+
+        synchronized (this) {
+            if (!mAwaitingReply || sequence != mPingSequence)
+                return;
+            mAwaitingReply = false;
+            missed = ++mMissed;
+            dead = missed >= mMaxMissed;
+            listener = mListener;
+        }
+
+        if (listener != null) {
+            listener.onPingMissed(missed);
+            if (dead)
+                listener.onLinkDead();
+        }
+
+        if (dead)
+            mSerial.dropConnection();
+    }
+
+    private final Runnable mPingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ping();
+        }
+    };
+
+}
@@ -0,0 +1,367 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Multiplexer for carrying up to 256 logical channels over a single Bluetooth serial connection. Each chunk of data is sent as a frame tagged with its channel ID, and the outbound queues of the channels are served in round-robin order one frame at a time, so that a bulk transfer on one channel cannot starve the others. Each frame is written with {@link com.macroyau.blue2serial.SerialLink#writeAndWait(byte[])} before the next one is taken, so the turns are kept even if the link queues writes, and a frame which cannot be written while disconnected is sent again after reconnecting.
+ *
+ * <p>Frame format: {@code 0xB2, channel, length (2 bytes, big-endian), payload, CRC-16/CCITT (2 bytes, big-endian)}. The CRC covers all bytes after {@code 0xB2}. Frames with a length above the maximum payload or a CRC mismatch are discarded, and parsing resumes at the next {@code 0xB2}, so a corrupted length field loses at most one maximum payload of data. The remote device must use the same framing and maximum payload.</p>
+ *
+ * <p>Register the multiplexer with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)} before connecting.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialMultiplexer implements BluetoothSerialStreamListener {
+
+    public static final int MAX_CHANNELS = 256;
+
+    protected static final byte FRAME_START = (byte) 0xB2;
+    protected static final int HEADER_LENGTH = 4;
+    protected static final int CRC_LENGTH = Crc16.LENGTH;
+
+    private static final int DEFAULT_MAX_PAYLOAD = 512;
+    private static final int MAX_PAYLOAD = 0xFFFF;
+
+    private static final int PARSE_START = 0;
+    private static final int PARSE_HEADER = 1;
+    private static final int PARSE_PAYLOAD = 2;
+
+    /**
+     * Listener for the data received on a logical channel.
+     */
+    public interface ChannelListener {
+
+        /**
+         * Specified bytes are received on the channel. This is invoked on the connection's I/O thread and the buffer is reused afterwards.
+         *
+         * @param channel The channel ID.
+         * @param buffer The buffer holding the bytes received.
+         * @param offset The offset of the first byte received in the buffer.
+         * @param length The number of bytes received.
+         */
+        void onChannelRead(int channel, byte[] buffer, int offset, int length);
+
+    }
+
+    private static class OutboundQueue {
+
+        private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+        private int mHeadOffset;
+        private long mQueuedBytes;
+
+    }
+
+    private final SerialLink mSerial;
+    private final AtomicReferenceArray<ChannelListener> mListeners = new AtomicReferenceArray<>(MAX_CHANNELS);
+    private final OutboundQueue[] mQueues = new OutboundQueue[MAX_CHANNELS];
+    private final int mMaxPayload;
+
+    private int mNextChannel;
+    private byte[] mUnsentFrame;
+    private boolean mFrameInFlight; // Taken by a writer thread and not yet written or returned
+    private WriterThread mWriterThread;
+
+    private int mParseState = PARSE_START;
+    private int mParseLength;
+    private int mParseOffset;
+    private final byte[] mParseBuffer; // Channel, length, payload and CRC of the frame being parsed
+    private long mDiscardedBytes;
+    private long mCorruptFrames;
+
+    /**
+     * Constructor. Outbound data is split into frames of at most 512 bytes.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to multiplex, e.g. a {@code BluetoothSerial}.
+     */
+    public BluetoothSerialMultiplexer(SerialLink serial) {
+        this(serial, DEFAULT_MAX_PAYLOAD);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to multiplex, e.g. a {@code BluetoothSerial}.
+     * @param maxPayload The maximum number of payload bytes in a frame, which must match the remote device. Smaller frames let the channels take turns more often.
+     */
+    public BluetoothSerialMultiplexer(SerialLink serial, int maxPayload) {
+        if (maxPayload <= 0 || maxPayload > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Invalid maximum payload size!");
+
+        mSerial = serial;
+        mMaxPayload = maxPayload;
+        mParseBuffer = new byte[HEADER_LENGTH - 1 + maxPayload + CRC_LENGTH];
+        for (int i = 0; i < MAX_CHANNELS; i++)
+            mQueues[i] = new OutboundQueue();
+    }
+
+    private static void checkChannel(int channel) {
+        if (channel < 0 || channel >= MAX_CHANNELS)
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+    }
+
+    /**
+     * Set a listener to be invoked when data is received on the specified channel.
+     *
+     * @param channel The channel ID between 0 and 255.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialMultiplexer.ChannelListener} to use, or null to discard the data of the channel.
+     */
+    public void setChannelListener(int channel, ChannelListener listener) {
+        checkChannel(channel);
+        mListeners.set(channel, listener);
+    }
+
+    /**
+     * Queue the specified bytes to be written on a channel.
+     *
+     * @param channel The channel ID between 0 and 255.
+     * @param data The data to be written.
+     */
+    public void write(int channel, byte[] data) {
+        checkChannel(channel);
+        if (data.length == 0)
+            return;
+
+        synchronized (mQueues) {
+            OutboundQueue queue = mQueues[channel];
+            queue.mChunks.add(data.clone());
+            queue.mQueuedBytes += data.length;
+            mQueues.notifyAll();
+        }
+    }
+
+    /**
+     * Write the specified string on a channel.
+     *
+     * @param channel The channel ID between 0 and 255.
+     * @param data The data to be written.
+     */
+    public void write(int channel, String data) {
+        write(channel, data.getBytes());
+    }
+
+    /**
+     * Get the number of bytes queued to be written on a channel.
+     *
+     * @param channel The channel ID between 0 and 255.
+     * @return the number of queued bytes
+     */
+    public long getQueuedBytes(int channel) {
+        checkChannel(channel);
+        synchronized (mQueues) {
+            return mQueues[channel].mQueuedBytes;
+        }
+    }
+
+    /**
+     * Discard the bytes queued to be written on a channel.
+     *
+     * @param channel The channel ID between 0 and 255.
+     */
+    public void clear(int channel) {
+        checkChannel(channel);
+        synchronized (mQueues) {
+            OutboundQueue queue = mQueues[channel];
+            queue.mChunks.clear();
+            queue.mHeadOffset = 0;
+            queue.mQueuedBytes = 0;
+            if (mUnsentFrame != null && (mUnsentFrame[1] & 0xFF) == channel)
+                mUnsentFrame = null;
+        }
+    }
+
+    /**
+     * Get the number of inbound bytes discarded because they were not part of a valid frame.
+     *
+     * @return the number of discarded bytes
+     */
+    public synchronized long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    /**
+     * Get the number of inbound frames discarded because of a CRC mismatch or an invalid length.
+     *
+     * @return the number of corrupt frames
+     */
+    public synchronized long getCorruptFrames() {
+        return mCorruptFrames;
+    }
+
+    /**
+     * Take the next frame from the channel queues in round-robin order, waiting until one is available.
+     */
+    private byte[] takeFrame() throws InterruptedException {
+        synchronized (mQueues) {
+            // Wait for the writer of the previous connection to write or return its frame
+            while (mFrameInFlight)
+                mQueues.wait();
+            while (true) {
+                if (mUnsentFrame != null) {
+                    byte[] frame = mUnsentFrame;
+                    mUnsentFrame = null;
+                    mFrameInFlight = true;
+                    return frame;
+                }
+                for (int i = 0; i < MAX_CHANNELS; i++) {
+                    int channel = (mNextChannel + i) % MAX_CHANNELS;
+                    OutboundQueue queue = mQueues[channel];
+                    if (queue.mQueuedBytes > 0) {
+                        mNextChannel = (channel + 1) % MAX_CHANNELS;
+                        mFrameInFlight = true;
+                        return buildFrame(channel, queue);
+                    }
+                }
+                mQueues.wait();
+            }
+        }
+    }
+
+    /**
+     * Release the frame taken by the writer thread, keeping it to be written first if it could not be written.
+     */
+    private void releaseFrame(byte[] unsentFrame) {
+        synchronized (mQueues) {
+            if (unsentFrame != null)
+                mUnsentFrame = unsentFrame;
+            mFrameInFlight = false;
+            mQueues.notifyAll();
+        }
+    }
+
+    private byte[] buildFrame(int channel, OutboundQueue queue) {
+        int length = (int) Math.min(mMaxPayload, queue.mQueuedBytes);
+        byte[] frame = new byte[HEADER_LENGTH + length + CRC_LENGTH];
+        frame[0] = FRAME_START;
+        frame[1] = (byte) channel;
+        frame[2] = (byte) (length >> 8);
+        frame[3] = (byte) length;
+
+        int written = 0;
+        while (written < length) {
+            byte[] head = queue.mChunks.peek();
+            int n = Math.min(length - written, head.length - queue.mHeadOffset);
+            System.arraycopy(head, queue.mHeadOffset, frame, HEADER_LENGTH + written, n);
+            written += n;
+            queue.mHeadOffset += n;
+            if (queue.mHeadOffset == head.length) {
+                queue.mChunks.poll();
+                queue.mHeadOffset = 0;
+            }
+        }
+        queue.mQueuedBytes -= length;
+        Crc16.append(frame, 1, HEADER_LENGTH - 1 + length);
+        return frame;
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        mParseState = PARSE_START;
+        if (mWriterThread == null) {
+            mWriterThread = new WriterThread();
+            mWriterThread.start();
+        }
+    }
+
+    @Override
+    public synchronized void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            switch (mParseState) {
+                case PARSE_START:
+                    if (buffer[i] == FRAME_START) {
+                        mParseOffset = 0;
+                        mParseState = PARSE_HEADER;
+                    } else {
+                        mDiscardedBytes++;
+                    }
+                    i++;
+                    break;
+                case PARSE_HEADER:
+                    int n = Math.min(end - i, HEADER_LENGTH - 1 - mParseOffset);
+                    System.arraycopy(buffer, i, mParseBuffer, mParseOffset, n);
+                    mParseOffset += n;
+                    i += n;
+                    if (mParseOffset == HEADER_LENGTH - 1) {
+                        mParseLength = ((mParseBuffer[1] & 0xFF) << 8) | (mParseBuffer[2] & 0xFF);
+                        if (mParseLength == 0 || mParseLength > mMaxPayload) {
+                            mCorruptFrames++;
+                            mDiscardedBytes += HEADER_LENGTH;
+                            mParseState = PARSE_START;
+                        } else {
+                            mParseState = PARSE_PAYLOAD;
+                        }
+                    }
+                    break;
+                case PARSE_PAYLOAD:
+                    int frameLength = HEADER_LENGTH - 1 + mParseLength + CRC_LENGTH;
+                    n = Math.min(end - i, frameLength - mParseOffset);
+                    System.arraycopy(buffer, i, mParseBuffer, mParseOffset, n);
+                    mParseOffset += n;
+                    i += n;
+                    if (mParseOffset == frameLength) {
+                        onFrame();
+                        mParseState = PARSE_START;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void onFrame() {
+        if (!Crc16.check(mParseBuffer, 0, HEADER_LENGTH - 1 + mParseLength)) {
+            mCorruptFrames++;
+            mDiscardedBytes += HEADER_LENGTH + mParseLength + CRC_LENGTH;
+            return;
+        }
+
+        int channel = mParseBuffer[0] & 0xFF;
+        ChannelListener listener = mListeners.get(channel);
+        if (listener != null)
+            listener.onChannelRead(channel, mParseBuffer, HEADER_LENGTH - 1, mParseLength);
+    }
+
+    @Override
+    public synchronized void onStreamClosed() {
+        if (mWriterThread != null) {
+            mWriterThread.interrupt();
+            mWriterThread = null;
+        }
+    }
+
+    private class WriterThread extends Thread {
+
+        public WriterThread() {
+            super("BluetoothSerialMultiplexer");
+        }
+
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    byte[] frame = takeFrame();
+                    byte[] unsentFrame = null;
+                    try {
+                        mSerial.writeAndWait(frame);
+                    } catch (IOException e) {
+                        unsentFrame = frame; // Disconnected or interrupted; keep the frame for the next connection
+                    } finally {
+                        releaseFrame(unsentFrame);
+                    }
+                    if (unsentFrame != null)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                // Connection closed
+            } finally {
+                synchronized (BluetoothSerialMultiplexer.this) {
+                    if (mWriterThread == this)
+                        mWriterThread = null;
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,475 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable delivery over a serial link with sequence numbers, cumulative acknowledgements and go-back-N retransmission. Written data is split into numbered frames protected by a CRC, up to a window of frames is sent ahead of the acknowledgements, and unacknowledged frames are resent on timeout. Each frame is written with {@link com.macroyau.blue2serial.SerialLink#writeAndWait(byte[])}, so a frame which cannot be written stops the sender until the link is opened again instead of being dropped silently. The state is kept across connections, so after a reconnection the transfer resumes from the last acknowledged frame rather than from the start.
+ *
+ * <p>Data frame format: {@code 0xA5, 0x01, sequence (4 bytes, big-endian), length (2 bytes, big-endian), payload, CRC-16/CCITT (2 bytes, big-endian)}. Acknowledgement frame format: {@code 0xA5, 0x02, next expected sequence (4 bytes, big-endian), CRC-16/CCITT (2 bytes, big-endian)}. The CRC covers all bytes after {@code 0xA5}. The remote device must use the same framing and keep its sequence numbers across reconnections, or both ends must be {@link #reset()} together.</p>
+ *
+ * <p>Register the channel with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)} before connecting.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialReliableChannel implements BluetoothSerialStreamListener {
+
+    protected static final byte FRAME_START = (byte) 0xA5;
+    protected static final byte TYPE_DATA = 0x01;
+    protected static final byte TYPE_ACK = 0x02;
+
+    private static final int DATA_HEADER_LENGTH = 8;
+    private static final int ACK_LENGTH = 8;
+    private static final int CRC_LENGTH = Crc16.LENGTH;
+
+    private static final int DEFAULT_MAX_PAYLOAD = 256;
+    private static final int MAX_PAYLOAD = 0xFFFF;
+    private static final int DEFAULT_WINDOW = 8;
+    private static final long DEFAULT_RETRANSMIT_TIMEOUT = 500; // ms
+
+    private static final int PARSE_START = 0;
+    private static final int PARSE_TYPE = 1;
+    private static final int PARSE_HEADER = 2;
+    private static final int PARSE_PAYLOAD = 3;
+
+    /**
+     * Listener for the data received reliably.
+     */
+    public interface ReliableListener {
+
+        /**
+         * Specified bytes are received in order and without duplicates. This is invoked on the connection's I/O thread and the buffer is reused afterwards.
+         *
+         * @param buffer The buffer holding the bytes received.
+         * @param offset The offset of the first byte received in the buffer.
+         * @param length The number of bytes received.
+         */
+        void onReliableRead(byte[] buffer, int offset, int length);
+
+    }
+
+    private final SerialLink mSerial;
+    private final ReliableListener mListener;
+    private final int mMaxPayload;
+
+    private int mWindow = DEFAULT_WINDOW;
+    private long mRetransmitTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RETRANSMIT_TIMEOUT);
+
+    // Sender state, guarded by this
+    private final ArrayDeque<byte[]> mUnsent = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mInFlight = new ArrayDeque<>();
+    private int mNextSequence;
+    private long mOldestSentTime;
+    private long mQueuedBytes;
+    private boolean mAckPending;
+    private boolean mConnected;
+    private int mOpenings, mTakenOpening;
+    private SenderThread mThread;
+    private long mRetransmittedFrames;
+
+    // Receiver state, accessed on the I/O thread
+    private int mExpectedSequence;
+    private int mParseState = PARSE_START;
+    private int mParseType;
+    private int mParseLength;
+    private int mParseOffset;
+    private final byte[] mParseBuffer;
+    private long mCorruptFrames;
+    private long mDuplicateFrames;
+
+    /**
+     * Constructor. Outbound data is split into frames of at most 256 bytes.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to deliver over, e.g. a {@code BluetoothSerial}.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialReliableChannel.ReliableListener} to use.
+     */
+    public BluetoothSerialReliableChannel(SerialLink serial, ReliableListener listener) {
+        this(serial, listener, DEFAULT_MAX_PAYLOAD);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to deliver over, e.g. a {@code BluetoothSerial}.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialReliableChannel.ReliableListener} to use.
+     * @param maxPayload The maximum number of payload bytes in a frame. The remote device must accept frames of this size.
+     */
+    public BluetoothSerialReliableChannel(SerialLink serial, ReliableListener listener, int maxPayload) {
+        if (maxPayload <= 0 || maxPayload > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Invalid maximum payload size!");
+
+        mSerial = serial;
+        mListener = listener;
+        mMaxPayload = maxPayload;
+        mParseBuffer = new byte[DATA_HEADER_LENGTH + maxPayload + CRC_LENGTH];
+    }
+
+    /**
+     * Set the maximum number of frames sent ahead of the acknowledgements. A larger window keeps a high-latency link busy at the cost of more retransmission after a loss.
+     *
+     * @param window The window size in frames.
+     */
+    public synchronized void setWindow(int window) {
+        if (window <= 0)
+            throw new IllegalArgumentException("Window must be positive!");
+
+        mWindow = window;
+        notifyAll();
+    }
+
+    /**
+     * Set the time to wait for the acknowledgement of the oldest frame in flight before the frames in flight are resent.
+     *
+     * @param timeout The timeout in milliseconds.
+     */
+    public synchronized void setRetransmitTimeout(long timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Timeout must be positive!");
+
+        mRetransmitTimeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Queue the specified bytes to be delivered.
+     *
+     * @param data The data to be written.
+     */
+    public synchronized void write(byte[] data) {
+        for (int offset = 0; offset < data.length; offset += mMaxPayload) {
+            int length = Math.min(mMaxPayload, data.length - offset);
+            mUnsent.add(buildDataFrame(mNextSequence++, data, offset, length));
+            mQueuedBytes += length;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queue the specified string to be delivered.
+     *
+     * @param data The data to be written.
+     */
+    public void write(String data) {
+        write(data.getBytes());
+    }
+
+    /**
+     * Get the number of written bytes not yet acknowledged by the remote device.
+     *
+     * @return the number of unacknowledged bytes
+     */
+    public synchronized long getUnacknowledgedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Wait until all written bytes are acknowledged by the remote device.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return true if all bytes are acknowledged, or false on timeout
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public synchronized boolean awaitAcknowledged(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (mQueuedBytes > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of frames resent because they were not acknowledged in time or the connection was lost.
+     *
+     * @return the number of retransmitted frames
+     */
+    public synchronized long getRetransmittedFrames() {
+        return mRetransmittedFrames;
+    }
+
+    /**
+     * Get the number of inbound frames discarded because of a CRC mismatch or an invalid header.
+     *
+     * @return the number of corrupt frames
+     */
+    public synchronized long getCorruptFrames() {
+        return mCorruptFrames;
+    }
+
+    /**
+     * Get the number of inbound frames discarded because they were already received or arrived out of order.
+     *
+     * @return the number of duplicate frames
+     */
+    public synchronized long getDuplicateFrames() {
+        return mDuplicateFrames;
+    }
+
+    /**
+     * Discard the queued data and restart the sequence numbers from zero. The remote device must be reset at the same time.
+     */
+    public synchronized void reset() {
+        mUnsent.clear();
+        mInFlight.clear();
+        mQueuedBytes = 0;
+        mNextSequence = 0;
+        mExpectedSequence = 0;
+        mParseState = PARSE_START;
+        notifyAll();
+    }
+
+    /**
+     * Stop the sender thread. Queued data is kept and resumes on the next connection.
+     */
+    public synchronized void shutdown() {
+        mConnected = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        mConnected = true;
+        mOpenings++;
+        mParseState = PARSE_START;
+        goBack();
+        mAckPending = true; // Tell the remote device where to resume
+        if (mThread == null) {
+            mThread = new SenderThread();
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            switch (mParseState) {
+                case PARSE_START:
+                    if (buffer[i] == FRAME_START)
+                        mParseState = PARSE_TYPE;
+                    i++;
+                    break;
+                case PARSE_TYPE:
+                    mParseType = buffer[i];
+                    if (mParseType == TYPE_DATA || mParseType == TYPE_ACK) {
+                        mParseBuffer[0] = buffer[i];
+                        mParseOffset = 1;
+                        mParseState = PARSE_HEADER;
+                        i++;
+                    } else {
+                        mParseState = PARSE_START; // Rescan this byte for a frame start
+                    }
+                    break;
+                case PARSE_HEADER:
+                    int headerLength = (mParseType == TYPE_DATA) ? DATA_HEADER_LENGTH - 1 : ACK_LENGTH - 1;
+                    int n = Math.min(end - i, headerLength - mParseOffset);
+                    System.arraycopy(buffer, i, mParseBuffer, mParseOffset, n);
+                    mParseOffset += n;
+                    i += n;
+                    if (mParseOffset == headerLength) {
+                        if (mParseType == TYPE_ACK) {
+                            onAckFrame();
+                            mParseState = PARSE_START;
+                        } else {
+                            mParseLength = ((mParseBuffer[5] & 0xFF) << 8) | (mParseBuffer[6] & 0xFF);
+                            if (mParseLength == 0 || mParseLength > mMaxPayload) {
+                                mCorruptFrames++;
+                                mParseState = PARSE_START;
+                            } else {
+                                mParseState = PARSE_PAYLOAD;
+                            }
+                        }
+                    }
+                    break;
+                case PARSE_PAYLOAD:
+                    int frameLength = DATA_HEADER_LENGTH - 1 + mParseLength + CRC_LENGTH;
+                    n = Math.min(end - i, frameLength - mParseOffset);
+                    System.arraycopy(buffer, i, mParseBuffer, mParseOffset, n);
+                    mParseOffset += n;
+                    i += n;
+                    if (mParseOffset == frameLength) {
+                        onDataFrame();
+                        mParseState = PARSE_START;
+                    }
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onStreamClosed() {
+        mConnected = false;
+        notifyAll();
+    }
+
+    private void onAckFrame() {
+        if (!Crc16.check(mParseBuffer, 0, ACK_LENGTH - 1 - CRC_LENGTH)) {
+            mCorruptFrames++;
+            return;
+        }
+
+        // Cumulative acknowledgement of all frames before the next expected sequence
+        int next = readInt(mParseBuffer, 1);
+        boolean acked = false;
+        while (!mInFlight.isEmpty() && getSequence(mInFlight.peek()) - next < 0) {
+            byte[] frame = mInFlight.poll();
+            mQueuedBytes -= frame.length - DATA_HEADER_LENGTH - CRC_LENGTH;
+            acked = true;
+        }
+        if (acked) {
+            mOldestSentTime = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    private void onDataFrame() {
+        int dataLength = DATA_HEADER_LENGTH - 1 + mParseLength;
+        if (!Crc16.check(mParseBuffer, 0, dataLength)) {
+            mCorruptFrames++;
+            return;
+        }
+
+        int sequence = readInt(mParseBuffer, 1);
+        if (sequence == mExpectedSequence) {
+            mExpectedSequence++;
+            mListener.onReliableRead(mParseBuffer, DATA_HEADER_LENGTH - 1, mParseLength);
+        } else {
+            mDuplicateFrames++;
+        }
+
+        // Acknowledge every data frame, so a lost acknowledgement is repaired by the next one
+        mAckPending = true;
+        notifyAll();
+    }
+
+    /**
+     * Move the frames in flight back to the front of the unsent queue, so they are sent again in order.
+     */
+    private void goBack() {
+        if (mInFlight.isEmpty())
+            return;
+
+        mRetransmittedFrames += mInFlight.size();
+        Iterator<byte[]> it = mInFlight.descendingIterator();
+        while (it.hasNext())
+            mUnsent.addFirst(it.next());
+        mInFlight.clear();
+    }
+
+    /**
+     * Keep a frame which cannot be written, and stop sending until the link is opened again.
+     */
+    private synchronized void onWriteFailed(byte[] frame) {
+        if (frame[1] == TYPE_ACK)
+            mAckPending = true;
+        // A data frame stays in flight and is sent again on the next opening
+        if (mTakenOpening == mOpenings)
+            mConnected = false;
+    }
+
+    /**
+     * Wait until a frame is due to be written, and take it.
+     */
+    private synchronized byte[] takeFrame() throws InterruptedException {
+        while (true) {
+            if (!mConnected) {
+                wait();
+                continue;
+            }
+
+            mTakenOpening = mOpenings;
+            if (mAckPending) {
+                mAckPending = false;
+                return buildAckFrame(mExpectedSequence);
+            }
+
+            long now = System.nanoTime();
+            if (!mInFlight.isEmpty() && now - mOldestSentTime >= mRetransmitTimeout)
+                goBack();
+
+            if (!mUnsent.isEmpty() && mInFlight.size() < mWindow) {
+                byte[] frame = mUnsent.poll();
+                if (mInFlight.isEmpty())
+                    mOldestSentTime = now;
+                mInFlight.add(frame);
+                return frame;
+            }
+
+            if (mInFlight.isEmpty())
+                wait();
+            else
+                TimeUnit.NANOSECONDS.timedWait(this, mOldestSentTime + mRetransmitTimeout - now);
+        }
+    }
+
+    private static byte[] buildDataFrame(int sequence, byte[] data, int offset, int length) {
+        byte[] frame = new byte[DATA_HEADER_LENGTH + length + CRC_LENGTH];
+        frame[0] = FRAME_START;
+        frame[1] = TYPE_DATA;
+        writeInt(frame, 2, sequence);
+        frame[6] = (byte) (length >> 8);
+        frame[7] = (byte) length;
+        System.arraycopy(data, offset, frame, DATA_HEADER_LENGTH, length);
+        Crc16.append(frame, 1, DATA_HEADER_LENGTH - 1 + length);
+        return frame;
+    }
+
+    private static byte[] buildAckFrame(int next) {
+        byte[] frame = new byte[1 + ACK_LENGTH - 1];
+        frame[0] = FRAME_START;
+        frame[1] = TYPE_ACK;
+        writeInt(frame, 2, next);
+        Crc16.append(frame, 1, ACK_LENGTH - 1 - CRC_LENGTH);
+        return frame;
+    }
+
+    private static int getSequence(byte[] frame) {
+        return readInt(frame, 2);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private class SenderThread extends Thread {
+
+        public SenderThread() {
+            super("BluetoothSerialReliableChannel");
+        }
+
+        public void run() {
+            while (!isInterrupted()) {
+                byte[] frame;
+                try {
+                    frame = takeFrame();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                try {
+                    mSerial.writeAndWait(frame);
+                } catch (IOException e) {
+                    onWriteFailed(frame);
+                }
+            }
+        }
+
+    }
+
+}
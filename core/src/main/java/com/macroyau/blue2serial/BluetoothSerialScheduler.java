@@ -0,0 +1,234 @@
+package com.macroyau.blue2serial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler for writing commands to the serial port periodically at fixed rates, e.g. for polling sensors. The deadlines are computed from a monotonic clock so the rates do not drift, commands due within the same tick are merged into a single write, and the schedule pauses while disconnected and restarts on reconnection.
+ *
+ * <p>Register the scheduler with {@link com.macroyau.blue2serial.SerialLink#addStreamListener(BluetoothSerialStreamListener)} so that it follows the connection state.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialScheduler implements BluetoothSerialStreamListener {
+
+    private static final long DEFAULT_TICK = 1; // ms
+
+    /**
+     * A command written periodically by the scheduler.
+     */
+    public static class Command {
+
+        private final byte[] mData;
+        private final long mPeriod; // ns
+        private long mNextDeadline; // ns
+        private long mMissed;
+
+        private Command(byte[] data, long period) {
+            mData = data;
+            mPeriod = period;
+        }
+
+        /**
+         * Get the number of periods skipped because the scheduler fell behind by more than a whole period.
+         *
+         * @return the number of skipped periods
+         */
+        public synchronized long getMissedCount() {
+            return mMissed;
+        }
+
+    }
+
+    private final SerialLink mSerial;
+    private final long mTick; // ns
+    private final List<Command> mCommands = new ArrayList<>();
+
+    private boolean mConnected;
+    private SchedulerThread mThread;
+
+    /**
+     * Constructor. Commands due within 1 ms of each other are merged.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to write to, e.g. a {@code BluetoothSerial}.
+     */
+    public BluetoothSerialScheduler(SerialLink serial) {
+        this(serial, DEFAULT_TICK);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to write to, e.g. a {@code BluetoothSerial}.
+     * @param tick The tick in milliseconds. Commands due within the same tick are merged into a single write.
+     */
+    public BluetoothSerialScheduler(SerialLink serial, long tick) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("Tick must be positive!");
+
+        mSerial = serial;
+        mTick = TimeUnit.MILLISECONDS.toNanos(tick);
+    }
+
+    /**
+     * Write the specified bytes periodically at a fixed rate while connected.
+     *
+     * @param data The command to be written.
+     * @param period The period in milliseconds.
+     * @return the command, for cancelling it later
+     */
+    public synchronized Command schedule(byte[] data, long period) {
+        if (period <= 0)
+            throw new IllegalArgumentException("Period must be positive!");
+
+        Command command = new Command(data.clone(), TimeUnit.MILLISECONDS.toNanos(period));
+        command.mNextDeadline = System.nanoTime();
+        mCommands.add(command);
+        notifyAll();
+        return command;
+    }
+
+    /**
+     * Write the specified string periodically at a fixed rate while connected.
+     *
+     * @param data The command to be written.
+     * @param period The period in milliseconds.
+     * @return the command, for cancelling it later
+     */
+    public Command schedule(String data, long period) {
+        return schedule(data.getBytes(), period);
+    }
+
+    /**
+     * Stop writing a command.
+     *
+     * @param command The command returned by {@link #schedule(byte[], long)}.
+     */
+    public synchronized void cancel(Command command) {
+        mCommands.remove(command);
+        notifyAll();
+    }
+
+    /**
+     * Stop writing all commands.
+     */
+    public synchronized void cancelAll() {
+        mCommands.clear();
+        notifyAll();
+    }
+
+    /**
+     * Stop the scheduler thread. Scheduled commands are kept and resume on the next connection.
+     */
+    public synchronized void shutdown() {
+        mConnected = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        // Restart the schedule from now rather than catching up on the periods missed while disconnected
+        long now = System.nanoTime();
+        for (Command c : mCommands)
+            c.mNextDeadline = now;
+
+        mConnected = true;
+        if (mThread == null) {
+            mThread = new SchedulerThread();
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+    }
+
+    @Override
+    public synchronized void onStreamClosed() {
+        mConnected = false;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the next tick with due commands, and collect the due commands into a single buffer.
+     */
+    private synchronized byte[] takeDueCommands() throws InterruptedException {
+        while (true) {
+            while (!mConnected || mCommands.isEmpty())
+                wait();
+
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (Command c : mCommands)
+                earliest = Math.min(earliest, c.mNextDeadline);
+
+            long delay = earliest - now;
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+                continue;
+            }
+
+            // Merge all commands due within this tick
+            int length = 0;
+            List<Command> due = new ArrayList<>();
+            for (Command c : mCommands) {
+                if (c.mNextDeadline - now < mTick) {
+                    due.add(c);
+                    length += c.mData.length;
+                }
+            }
+
+            byte[] merged = new byte[length];
+            int offset = 0;
+            for (Command c : due) {
+                System.arraycopy(c.mData, 0, merged, offset, c.mData.length);
+                offset += c.mData.length;
+                advance(c, now);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Move a command to its next deadline on the fixed-rate grid, skipping the periods already passed.
+     */
+    private static void advance(Command c, long now) {
+        c.mNextDeadline += c.mPeriod;
+        long behind = now - c.mNextDeadline;
+        if (behind > 0) {
+            // Skip only the deadlines strictly in the past, so a deadline landing on now still runs
+            long skipped = (behind + c.mPeriod - 1) / c.mPeriod;
+            c.mNextDeadline += skipped * c.mPeriod;
+            synchronized (c) {
+                c.mMissed += skipped;
+            }
+        }
+    }
+
+    private class SchedulerThread extends Thread {
+
+        public SchedulerThread() {
+            super("BluetoothSerialScheduler");
+            setPriority(Thread.MAX_PRIORITY);
+        }
+
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    byte[] data = takeDueCommands();
+                    if (data.length > 0)
+                        mSerial.write(data);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+    }
+
+}
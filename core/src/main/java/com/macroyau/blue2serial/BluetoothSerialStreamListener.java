@@ -0,0 +1,30 @@
+package com.macroyau.blue2serial;
+
+/**
+ * Listener for the byte stream of a Bluetooth serial connection. Unlike the {@code BluetoothSerialListener} of the Android library, the callbacks are invoked on the connection's I/O thread as soon as the data is read, so implementations must be thread-safe and return quickly.
+ *
+ * @author Macro Yau
+ */
+public interface BluetoothSerialStreamListener {
+
+    /**
+     * A connection is established and the stream is ready to be read.
+     */
+    void onStreamOpened();
+
+    /**
+     * Specified bytes are read from the serial port. The buffer is reused for the next read, so the bytes must be copied if they are needed after this method returns.
+     *
+     * @param buffer The buffer holding the bytes read.
+     * @param offset The offset of the first byte read in the buffer.
+     * @param length The number of bytes read.
+     * @param timestamp The {@link System#nanoTime()} at which the read from the socket returned.
+     */
+    void onStreamRead(byte[] buffer, int offset, int length, long timestamp);
+
+    /**
+     * The connection is closed or lost.
+     */
+    void onStreamClosed();
+
+}
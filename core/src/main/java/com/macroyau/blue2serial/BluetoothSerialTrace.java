@@ -0,0 +1,179 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Fixed-size ring buffer of connection events with nanosecond timestamps, for investigating stalls after the fact. Recording an event only stores primitives into preallocated arrays, so tracing can stay enabled in production without creating garbage, and the oldest events are overwritten once the buffer is full.
+ *
+ * <p>The buffer can be dumped with {@link #dump(Writer)} in the Chrome trace event format, which can be opened in {@code chrome://tracing} or Perfetto. Subclasses may additionally forward the I/O sections to a platform tracer by overriding {@link #beginSection(String)} and {@link #endSection()}.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialTrace {
+
+    public static final int EVENT_STATE = 0;
+    public static final int EVENT_CONNECT_BEGIN = 1;
+    public static final int EVENT_CONNECT_END = 2;
+    public static final int EVENT_READ = 3;
+    public static final int EVENT_WRITE = 4;
+    public static final int EVENT_READ_QUEUE_DEPTH = 5;
+    public static final int EVENT_WRITE_QUEUE_DEPTH = 6;
+    public static final int EVENT_DISPATCH_LAG = 7;
+
+    public static final String SECTION_CONNECT = "blue2serial:connect";
+    public static final String SECTION_READ = "blue2serial:read";
+    public static final String SECTION_WRITE = "blue2serial:write";
+
+    private static final String[] EVENT_NAMES = {
+            "state", "connect", "connect", "read", "write", "read queue", "write queue", "dispatch lag"
+    };
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final long[] mTimes;
+    private final long[] mValues;
+    private final byte[] mEvents;
+    private final long[] mThreads;
+    private int mNext;
+    private long mCount;
+
+    /**
+     * Constructor. The buffer holds the most recent 4096 events.
+     */
+    public BluetoothSerialTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of events held.
+     */
+    public BluetoothSerialTrace(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive!");
+
+        mTimes = new long[capacity];
+        mValues = new long[capacity];
+        mEvents = new byte[capacity];
+        mThreads = new long[capacity];
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event The event, e.g. {@link #EVENT_READ}.
+     * @param value The value of the event: the new state, 1 or 0 for a successful or failed connect, the number of bytes read or written, the queue depth, or the dispatch lag in nanoseconds.
+     */
+    public void record(int event, long value) {
+        long time = System.nanoTime();
+        long thread = Thread.currentThread().getId();
+        synchronized (this) {
+            int i = mNext;
+            mTimes[i] = time;
+            mValues[i] = value;
+            mEvents[i] = (byte) event;
+            mThreads[i] = thread;
+            mNext = (i + 1 == mTimes.length) ? 0 : i + 1;
+            mCount++;
+        }
+    }
+
+    /**
+     * Begin a section of work on the current thread, e.g. {@link #SECTION_READ}. Does nothing by default.
+     *
+     * @param name The name of the section.
+     */
+    public void beginSection(String name) {
+    }
+
+    /**
+     * End the most recent section begun on the current thread. Does nothing by default.
+     */
+    public void endSection() {
+    }
+
+    /**
+     * Get the number of events recorded so far, including those already overwritten.
+     *
+     * @return the number of events
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Discard all events.
+     */
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Write the events held in the Chrome trace event JSON format. Timestamps are in microseconds since the oldest event held.
+     *
+     * @param writer The writer to write to.
+     * @throws IOException if the events cannot be written
+     */
+    public void dump(Writer writer) throws IOException {
+        int n;
+        long[] times, values, threads;
+        byte[] events;
+
+        // Copy the events so that recording is not blocked while writing
+        synchronized (this) {
+            n = (int) Math.min(mCount, mTimes.length);
+            int first = (mCount > mTimes.length) ? mNext : 0;
+            times = new long[n];
+            values = new long[n];
+            threads = new long[n];
+            events = new byte[n];
+            for (int i = 0; i < n; i++) {
+                int j = (first + i) % mTimes.length;
+                times[i] = mTimes[j];
+                values[i] = mValues[j];
+                threads[i] = mThreads[j];
+                events[i] = mEvents[j];
+            }
+        }
+
+        long origin = (n > 0) ? times[0] : 0;
+        writer.write("{\"traceEvents\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                writer.write(',');
+            writer.write(toJson(events[i], (times[i] - origin) / 1000.0, threads[i], values[i]));
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    private static String toJson(int event, double ts, long thread, long value) {
+        String name = EVENT_NAMES[event];
+        switch (event) {
+            case EVENT_CONNECT_BEGIN:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"B\",\"ts\":%.3f,\"pid\":1,\"tid\":%d}",
+                        name, ts, thread);
+            case EVENT_CONNECT_END:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"E\",\"ts\":%.3f,\"pid\":1,\"tid\":%d,\"args\":{\"success\":%b}}",
+                        name, ts, thread, value != 0);
+            case EVENT_READ_QUEUE_DEPTH:
+            case EVENT_WRITE_QUEUE_DEPTH:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"C\",\"ts\":%.3f,\"pid\":1,\"args\":{\"depth\":%d}}",
+                        name, ts, value);
+            case EVENT_DISPATCH_LAG:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"C\",\"ts\":%.3f,\"pid\":1,\"args\":{\"ms\":%.3f}}",
+                        name, ts, value / 1e6);
+            case EVENT_STATE:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"p\",\"ts\":%.3f,\"pid\":1,\"tid\":%d,\"args\":{\"state\":%d}}",
+                        name, ts, thread, value);
+            default:
+                return String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"t\",\"ts\":%.3f,\"pid\":1,\"tid\":%d,\"args\":{\"bytes\":%d}}",
+                        name, ts, thread, value);
+        }
+    }
+
+}
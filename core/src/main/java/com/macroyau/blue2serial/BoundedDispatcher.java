@@ -0,0 +1,164 @@
+package com.macroyau.blue2serial;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers events to a single consumer on its own executor through a bounded queue, so that a slow consumer cannot delay the others. Events are run one at a time in order even on a multi-threaded executor. When the queue is full, droppable events are discarded and counted instead of blocking the producer, and an exception thrown by the consumer is counted without affecting the other consumers.
+ *
+ * @author Macro Yau
+ */
+public class BoundedDispatcher {
+
+    private final Executor mExecutor;
+    private final int mCapacity;
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+    private boolean mScheduled;
+    private boolean mShutdown;
+    private int mMaxDepth;
+    private long mDeliveredCount, mDroppedCount, mErrorCount;
+
+    /**
+     * Constructor.
+     *
+     * @param executor The executor running the events.
+     * @param capacity The maximum number of droppable events waiting in the queue.
+     */
+    public BoundedDispatcher(Executor executor, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive!");
+
+        mExecutor = executor;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Queue an event which may be dropped if the consumer is lagging, e.g. data read.
+     *
+     * @param event The event to be run.
+     * @return true if the event is queued, or false if it is dropped
+     */
+    public boolean dispatch(Runnable event) {
+        return enqueue(event, true);
+    }
+
+    /**
+     * Queue an event which must not be dropped, e.g. a state change. It is queued even if the queue is full.
+     *
+     * @param event The event to be run.
+     */
+    public void dispatchAlways(Runnable event) {
+        enqueue(event, false);
+    }
+
+    private boolean enqueue(Runnable event, boolean droppable) {
+        synchronized (this) {
+            if (mShutdown)
+                return false;
+            if (droppable && mQueue.size() >= mCapacity) {
+                mDroppedCount++;
+                return false;
+            }
+            mQueue.add(event);
+            mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+            if (mScheduled)
+                return true;
+            mScheduled = true;
+        }
+
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            shutdown(); // The executor is shut down
+            return false;
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable event;
+            synchronized (this) {
+                event = mQueue.poll();
+                if (event == null) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+
+            try {
+                event.run();
+                synchronized (this) {
+                    mDeliveredCount++;
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mErrorCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard the queued events and stop accepting new ones.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mQueue.clear();
+    }
+
+    /**
+     * Get the number of events waiting in the queue.
+     *
+     * @return the queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Get the highest number of events that have waited in the queue at once.
+     *
+     * @return the maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Get the number of events run by the consumer.
+     *
+     * @return the number of delivered events
+     */
+    public synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full.
+     *
+     * @return the number of dropped events
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Get the number of events which threw an exception in the consumer.
+     *
+     * @return the number of failed events
+     */
+    public synchronized long getErrorCount() {
+        return mErrorCount;
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+}
@@ -0,0 +1,50 @@
+package com.macroyau.blue2serial;
+
+/**
+ * CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF) used by the framed protocols, appended big-endian after the bytes it covers.
+ *
+ * @author Macro Yau
+ */
+final class Crc16 {
+
+    static final int LENGTH = 2;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++)
+                crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    static int compute(byte[] buffer, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++)
+            crc = ((crc << 8) ^ TABLE[((crc >> 8) ^ buffer[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+
+    /**
+     * Append the CRC of the specified bytes right after them.
+     */
+    static void append(byte[] buffer, int offset, int length) {
+        int crc = compute(buffer, offset, length);
+        buffer[offset + length] = (byte) (crc >> 8);
+        buffer[offset + length + 1] = (byte) crc;
+    }
+
+    /**
+     * Return true if the specified bytes are followed by their CRC.
+     */
+    static boolean check(byte[] buffer, int offset, int length) {
+        int crc = compute(buffer, offset, length);
+        return buffer[offset + length] == (byte) (crc >> 8) && buffer[offset + length + 1] == (byte) crc;
+    }
+
+}
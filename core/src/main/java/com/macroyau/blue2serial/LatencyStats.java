@@ -0,0 +1,137 @@
+package com.macroyau.blue2serial;
+
+import java.util.Arrays;
+
+/**
+ * Collector of latency samples in nanoseconds over a sliding window, for reporting round-trip times and other delays as percentiles.
+ *
+ * @author Macro Yau
+ */
+public class LatencyStats {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final long[] mSamples;
+    private long mCount;
+    private long mMin = Long.MAX_VALUE, mMax = Long.MIN_VALUE;
+    private long mSum;
+
+    /**
+     * Constructor. The most recent 1024 samples are kept for the percentiles.
+     */
+    public LatencyStats() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of most recent samples kept for the percentiles.
+     */
+    public LatencyStats(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive!");
+        mSamples = new long[capacity];
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public synchronized void add(long nanos) {
+        mSamples[(int) (mCount % mSamples.length)] = nanos;
+        mCount++;
+        mSum += nanos;
+        if (nanos < mMin)
+            mMin = nanos;
+        if (nanos > mMax)
+            mMax = nanos;
+    }
+
+    /**
+     * Get the number of samples added since creation or the last reset.
+     *
+     * @return the number of samples
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the smallest sample.
+     *
+     * @return the smallest sample in nanoseconds, or 0 if there is no sample
+     */
+    public synchronized long getMin() {
+        return (mCount > 0) ? mMin : 0;
+    }
+
+    /**
+     * Get the largest sample.
+     *
+     * @return the largest sample in nanoseconds, or 0 if there is no sample
+     */
+    public synchronized long getMax() {
+        return (mCount > 0) ? mMax : 0;
+    }
+
+    /**
+     * Get the mean of all samples.
+     *
+     * @return the mean in nanoseconds, or 0 if there is no sample
+     */
+    public synchronized long getMean() {
+        return (mCount > 0) ? mSum / mCount : 0;
+    }
+
+    /**
+     * Get the specified percentile over the most recent samples.
+     *
+     * @param percentile The percentile between 0 and 100, e.g. 99 for p99.
+     * @return the percentile in nanoseconds, or 0 if there is no sample
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted = getSortedSamples();
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Get multiple percentiles over the most recent samples at once.
+     *
+     * @param percentiles The percentiles between 0 and 100.
+     * @return the percentiles in nanoseconds, in the same order as requested
+     */
+    public long[] getPercentiles(double... percentiles) {
+        long[] sorted = getSortedSamples();
+        long[] result = new long[percentiles.length];
+        if (sorted.length == 0)
+            return result;
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100 * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+        return result;
+    }
+
+    private synchronized long[] getSortedSamples() {
+        int size = (int) Math.min(mCount, mSamples.length);
+        long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Discard all samples.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.macroyau.blue2serial;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton for finding multiple byte patterns in a stream at once. The transitions are precomputed for every byte value, so each byte of the stream costs exactly one table lookup regardless of the number of patterns, and a match can span any number of reads.
+ *
+ * @author Macro Yau
+ */
+class PatternAutomaton {
+
+    private static final int[] NO_MATCH = new int[0];
+
+    private final int[][] mTransitions;
+    private final int[][] mMatches;
+
+    /**
+     * Constructor.
+     *
+     * @param patterns The non-empty patterns to search for. A match reports the index of the pattern in this array.
+     */
+    PatternAutomaton(byte[][] patterns) {
+        List<int[]> transitions = new ArrayList<>();
+        List<int[]> matches = new ArrayList<>();
+        transitions.add(newState());
+        matches.add(NO_MATCH);
+
+        // Build the trie of the patterns
+        for (int p = 0; p < patterns.length; p++) {
+            if (patterns[p].length == 0)
+                throw new IllegalArgumentException("Pattern must not be empty!");
+
+            int state = 0;
+            for (byte b : patterns[p]) {
+                int c = b & 0xFF;
+                if (transitions.get(state)[c] < 0) {
+                    transitions.get(state)[c] = transitions.size();
+                    transitions.add(newState());
+                    matches.add(NO_MATCH);
+                }
+                state = transitions.get(state)[c];
+            }
+            matches.set(state, append(matches.get(state), p));
+        }
+
+        // Turn the trie into a complete transition table by following the failure links breadth-first
+        int[] failure = new int[transitions.size()];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        int[] root = transitions.get(0);
+        for (int c = 0; c < 256; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                failure[root[c]] = 0;
+                queue.add(root[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] next = transitions.get(state);
+            for (int c = 0; c < 256; c++) {
+                int child = next[c];
+                if (child < 0) {
+                    next[c] = transitions.get(failure[state])[c];
+                } else {
+                    failure[child] = transitions.get(failure[state])[c];
+                    int[] inherited = matches.get(failure[child]);
+                    for (int p : inherited)
+                        matches.set(child, append(matches.get(child), p));
+                    queue.add(child);
+                }
+            }
+        }
+
+        mTransitions = transitions.toArray(new int[transitions.size()][]);
+        mMatches = matches.toArray(new int[matches.size()][]);
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    /**
+     * Get the initial state.
+     */
+    int getInitialState() {
+        return 0;
+    }
+
+    /**
+     * Get the state after consuming the specified byte.
+     */
+    int next(int state, byte b) {
+        return mTransitions[state][b & 0xFF];
+    }
+
+    /**
+     * Get the indices of the patterns ending at the specified state, or an empty array if none.
+     */
+    int[] getMatches(int state) {
+        return mMatches[state];
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.macroyau.blue2serial;
+
+/**
+ * Reusable byte buffer passed along the stages of a {@link com.macroyau.blue2serial.SerialInterceptor} pipeline. The bytes are the range {@code [getOffset(), getOffset() + getLength())} of {@link #getArray()}.
+ *
+ * <p>A stage may modify the bytes in place, shrink the range, or grow it with {@link #ensureCapacity(int)}. A stage producing its output separately, e.g. escaping, writes it into {@link #getSpare(int)} and then calls {@link #swap(int)}. The buffer owns two arrays which are swapped and only reallocated when they have to grow.</p>
+ *
+ * @author Macro Yau
+ */
+public final class SerialBuffer {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final byte[][] mOwned = new byte[2][];
+    private byte[] mArray;
+    private int mOffset;
+    private int mLength;
+    private int mCurrent = -1; // Index of the owned array in use, or -1 for an external array
+
+    /**
+     * Get the array holding the bytes.
+     *
+     * @return the backing array
+     */
+    public byte[] getArray() {
+        return mArray;
+    }
+
+    /**
+     * Get the offset of the first byte in the array.
+     *
+     * @return the offset
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Get the number of bytes.
+     *
+     * @return the length
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Set the range of the bytes within the current array, e.g. to strip a header or a trailing checksum.
+     *
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public void setRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mArray.length)
+            throw new IndexOutOfBoundsException();
+
+        mOffset = offset;
+        mLength = length;
+    }
+
+    /**
+     * Make room for the specified number of bytes from the current offset, moving the bytes into an owned array if needed, e.g. to append a checksum.
+     *
+     * @param capacity The number of bytes needed.
+     * @return the array to write to, which may differ from the previous one
+     */
+    public byte[] ensureCapacity(int capacity) {
+        if (mCurrent >= 0 && mOffset + capacity <= mArray.length)
+            return mArray;
+
+        byte[] spare = getSpare(capacity);
+        System.arraycopy(mArray, mOffset, spare, 0, mLength);
+        swap(mLength);
+        return mArray;
+    }
+
+    /**
+     * Get the owned array not holding the current bytes, for writing a transformed copy of them.
+     *
+     * @param capacity The number of bytes needed.
+     * @return the spare array, with at least the specified capacity
+     */
+    public byte[] getSpare(int capacity) {
+        int i = (mCurrent == 0) ? 1 : 0;
+        if (mOwned[i] == null || mOwned[i].length < capacity)
+            mOwned[i] = new byte[Math.max(capacity, Math.max(INITIAL_CAPACITY, (mOwned[i] != null) ? mOwned[i].length * 2 : 0))];
+        return mOwned[i];
+    }
+
+    /**
+     * Make the spare array returned by {@link #getSpare(int)} hold the current bytes, from offset 0.
+     *
+     * @param length The number of bytes written to the spare array.
+     */
+    public void swap(int length) {
+        mCurrent = (mCurrent == 0) ? 1 : 0;
+        mArray = mOwned[mCurrent];
+        mOffset = 0;
+        mLength = length;
+    }
+
+    /**
+     * Point the buffer at bytes which may be modified in place but are not owned by it.
+     */
+    void wrap(byte[] array, int offset, int length) {
+        mArray = array;
+        mOffset = offset;
+        mLength = length;
+        mCurrent = -1;
+    }
+
+    /**
+     * Copy the specified bytes into an owned array, so that the caller's array is not modified.
+     */
+    void copyFrom(byte[] data) {
+        mCurrent = -1;
+        byte[] spare = getSpare(data.length);
+        System.arraycopy(data, 0, spare, 0, data.length);
+        swap(data.length);
+    }
+
+}
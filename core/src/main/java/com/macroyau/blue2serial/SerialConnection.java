@@ -0,0 +1,440 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * I/O loop of an established serial connection over a {@link com.macroyau.blue2serial.SerialTransport}, independent of Android. Running it reads the transport until the connection is closed or lost, decoding the optional compression and delivering the bytes to the {@link com.macroyau.blue2serial.BluetoothSerialStreamListener}s on the reading thread.
+ *
+ * <p>Written bytes pass through the {@link com.macroyau.blue2serial.SerialInterceptor}s, then the optional compression and pacing in chunks, and read bytes pass through the same stages in reverse order. Concurrent writes are queued in an urgent and a bulk lane, and the next chunk is always taken from the urgent lane first, so an urgent write waits for at most one chunk of a bulk transfer in progress.</p>
+ *
+ * @author Macro Yau
+ */
+public class SerialConnection implements Runnable, StreamCompression.RawWriter, StreamCompression.DecodedReader {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private static final int COMPRESSION_BLOCK_SIZE = 4096;
+
+    private static final int DEFAULT_CHUNK_SIZE = 512;
+
+    public static final int PRIORITY_URGENT = 0;
+    public static final int PRIORITY_BULK = 1;
+
+    private static class WriteRequest {
+
+        private final byte[] mData;
+        private final int mStart, mEnd;
+        private final boolean mUrgent;
+        private int mOffset;
+        private boolean mDone;
+        private IOException mError;
+
+        private WriteRequest(byte[] data, int offset, int length, boolean urgent) {
+            mData = data;
+            mStart = offset;
+            mOffset = offset;
+            mEnd = offset + length;
+            mUrgent = urgent;
+        }
+
+    }
+
+    /**
+     * Callback of the connection, invoked on the reading thread.
+     */
+    public interface Callback {
+
+        /**
+         * Specified bytes are read, after they are delivered to the stream listeners. The buffer is reused for the next read.
+         *
+         * @param buffer The buffer holding the bytes read.
+         * @param offset The offset of the first byte read in the buffer.
+         * @param length The number of bytes read.
+         * @param timestamp The {@link System#nanoTime()} at which the read from the transport returned.
+         */
+        void onRead(byte[] buffer, int offset, int length, long timestamp);
+
+        /**
+         * The connection is closed or lost, after the stream listeners are notified.
+         *
+         * @param connection The closed connection.
+         */
+        void onClosed(SerialConnection connection);
+
+    }
+
+    private final SerialTransport mTransport;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final List<BluetoothSerialStreamListener> mStreamListeners;
+    private final Callback mCallback;
+
+    private StreamCompression mCompression;
+    private WritePacer mPacer;
+    private BluetoothSerialTrace mTrace;
+    private long mReadTime;
+
+    // Interceptor pipeline
+    private SerialInterceptor[] mInterceptors = new SerialInterceptor[0];
+    private final SerialBuffer mReadBuffer = new SerialBuffer();
+    private final Object mInterceptLock = new Object();
+    private final ThreadLocal<SerialBuffer> mWriteBuffers = new ThreadLocal<SerialBuffer>() {
+        @Override
+        protected SerialBuffer initialValue() {
+            return new SerialBuffer();
+        }
+    };
+
+    // Outbound lanes, guarded by mLaneLock
+    private final Object mLaneLock = new Object();
+    private final ArrayDeque<WriteRequest> mUrgentLane = new ArrayDeque<>();
+    private final ArrayDeque<WriteRequest> mBulkLane = new ArrayDeque<>();
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean mWriting;
+
+    /**
+     * Constructor.
+     *
+     * @param transport The {@link com.macroyau.blue2serial.SerialTransport} of the connection.
+     * @param streamListeners The stream listeners to be invoked on the reading thread. The list may be modified while the connection is running if it is thread-safe, e.g. a {@link java.util.concurrent.CopyOnWriteArrayList}.
+     * @param callback The {@link com.macroyau.blue2serial.SerialConnection.Callback} to use.
+     * @throws IOException if the streams of the transport cannot be opened
+     */
+    public SerialConnection(SerialTransport transport, List<BluetoothSerialStreamListener> streamListeners, Callback callback) throws IOException {
+        mTransport = transport;
+        mInputStream = transport.getInputStream();
+        mOutputStream = transport.getOutputStream();
+        mStreamListeners = streamListeners;
+        mCallback = callback;
+    }
+
+    /**
+     * Offer compression to the remote device when the connection starts. Must be called before the connection is run.
+     *
+     * @param maxDelay The maximum time in milliseconds written data may be held back to be compressed together with subsequent data.
+     */
+    public void setCompression(long maxDelay) {
+        mCompression = new StreamCompression(this, maxDelay, COMPRESSION_BLOCK_SIZE, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Pace the written bytes. Must be called before the connection is run.
+     *
+     * @param rate The sustained rate in bytes per second, or 0 to write as fast as possible.
+     * @param burst The maximum number of bytes written at once.
+     * @param flowControl Set to true to honor XON/XOFF bytes on the inbound stream.
+     */
+    public void setPacing(double rate, int burst, boolean flowControl) {
+        if (rate > 0 || flowControl)
+            mPacer = new WritePacer(rate, burst, flowControl);
+        else
+            mPacer = null;
+    }
+
+    /**
+     * Set the number of bytes written at once. An urgent write waits for at most one chunk of a bulk write in progress. Must be called before the connection is run.
+     *
+     * @param chunkSize The chunk size in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Set the interceptors transforming the bytes written and read. Must be called before the connection is run.
+     *
+     * @param interceptors The {@link com.macroyau.blue2serial.SerialInterceptor}s, ordered from the application side to the wire side.
+     */
+    public void setInterceptors(List<SerialInterceptor> interceptors) {
+        mInterceptors = interceptors.toArray(new SerialInterceptor[interceptors.size()]);
+    }
+
+    /**
+     * Record the reads and writes into a trace. Must be called before the connection is run.
+     *
+     * @param trace The {@link com.macroyau.blue2serial.BluetoothSerialTrace} to use, or null to disable tracing.
+     */
+    public void setTrace(BluetoothSerialTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Return true if the data is compressed in both directions.
+     *
+     * @return true if compression is negotiated with the remote device
+     */
+    public boolean isCompressionActive() {
+        return mCompression != null && mCompression.isActive();
+    }
+
+    /**
+     * Return true if writing is paused by an XOFF from the remote device.
+     *
+     * @return true if writing is paused
+     */
+    public boolean isWritePaused() {
+        return mPacer != null && mPacer.isPaused();
+    }
+
+    @Override
+    public void run() {
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        int length;
+
+        synchronized (mInterceptLock) {
+            for (SerialInterceptor i : mInterceptors)
+                i.onOpened();
+        }
+        for (BluetoothSerialStreamListener l : mStreamListeners)
+            l.onStreamOpened();
+
+        try {
+            if (mCompression != null)
+                mCompression.offer();
+
+            while (true) {
+                length = mInputStream.read(data);
+                if (length < 0)
+                    break; // End of stream
+                mReadTime = System.nanoTime();
+                if (mTrace != null) {
+                    mTrace.record(BluetoothSerialTrace.EVENT_READ, length);
+                    mTrace.beginSection(BluetoothSerialTrace.SECTION_READ);
+                }
+                try {
+                    if (mPacer != null)
+                        length = mPacer.filterInbound(data, 0, length);
+                    if (length == 0)
+                        continue;
+                    if (mCompression != null)
+                        mCompression.read(data, 0, length, this);
+                    else
+                        onDecoded(data, 0, length);
+                } finally {
+                    if (mTrace != null)
+                        mTrace.endSection();
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed or lost
+        } finally {
+            if (mCompression != null)
+                mCompression.endInbound();
+
+            for (BluetoothSerialStreamListener l : mStreamListeners)
+                l.onStreamClosed();
+            mCallback.onClosed(this);
+        }
+    }
+
+    @Override
+    public void onDecoded(byte[] buffer, int offset, int length) {
+        if (mInterceptors.length > 0) {
+            // Transform in place in the reused read buffer, from the wire side to the application side. The lock keeps the calls of an interceptor sequential, as the writes are transformed on other threads.
+            mReadBuffer.wrap(buffer, offset, length);
+            synchronized (mInterceptLock) {
+                for (int i = mInterceptors.length - 1; i >= 0; i--)
+                    mInterceptors[i].onRead(mReadBuffer);
+            }
+            buffer = mReadBuffer.getArray();
+            offset = mReadBuffer.getOffset();
+            length = mReadBuffer.getLength();
+            if (length == 0)
+                return;
+        }
+
+        for (BluetoothSerialStreamListener l : mStreamListeners)
+            l.onStreamRead(buffer, offset, length, mReadTime);
+        mCallback.onRead(buffer, offset, length, mReadTime);
+    }
+
+    /**
+     * Write the specified bytes to the remote device in the bulk lane, blocking until they are written.
+     *
+     * @param data The data to be written.
+     * @throws IOException if the data cannot be written
+     */
+    public void write(byte[] data) throws IOException {
+        write(data, PRIORITY_BULK);
+    }
+
+    /**
+     * Write the specified bytes to the remote device, blocking until they are written. The chunks are written by whichever waiting writer thread is free, always from the urgent lane first.
+     *
+     * @param data The data to be written.
+     * @param priority The lane, either {@link #PRIORITY_URGENT} or {@link #PRIORITY_BULK}.
+     * @throws IOException if the data cannot be written
+     */
+    public void write(byte[] data, int priority) throws IOException {
+        if (mTrace != null)
+            mTrace.record(BluetoothSerialTrace.EVENT_WRITE, data.length);
+        if (data.length == 0)
+            return;
+
+        WriteRequest request;
+        if (mInterceptors.length > 0) {
+            // The buffer of this thread is not reused until the write below returns
+            SerialBuffer buffer = mWriteBuffers.get();
+            synchronized (mInterceptLock) {
+                buffer.copyFrom(data);
+                for (SerialInterceptor i : mInterceptors)
+                    i.onWrite(buffer);
+            }
+            if (buffer.getLength() == 0)
+                return;
+            request = new WriteRequest(buffer.getArray(), buffer.getOffset(), buffer.getLength(), priority == PRIORITY_URGENT);
+        } else {
+            request = new WriteRequest(data, 0, data.length, priority == PRIORITY_URGENT);
+        }
+        synchronized (mLaneLock) {
+            getLane(request).add(request);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            WriteRequest head;
+            int offset, length;
+
+            synchronized (mLaneLock) {
+                // Wait until the request is done, or until no other thread is writing a chunk. The wait is not interruptible, since the queued request may refer to a buffer of this thread.
+                while (!request.mDone && mWriting) {
+                    try {
+                        mLaneLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (request.mDone) {
+                    if (interrupted)
+                        Thread.currentThread().interrupt();
+                    if (request.mError != null)
+                        throw request.mError;
+                    return;
+                }
+
+                // Take the next chunk, which may belong to another request, from the urgent lane first
+                ArrayDeque<WriteRequest> lane = !mUrgentLane.isEmpty() ? mUrgentLane : mBulkLane;
+                head = lane.peek();
+                offset = head.mOffset;
+                length = Math.min(mChunkSize, head.mEnd - offset);
+                head.mOffset += length;
+                if (head.mOffset == head.mEnd)
+                    lane.poll();
+                mWriting = true;
+            }
+
+            IOException error = null;
+            try {
+                writeChunk(head.mData, offset, length);
+            } catch (InterruptedIOException e) {
+                if (mCompression == null) {
+                    // Only this thread is interrupted, so give up its own request and leave the others queued
+                    cancel(request, head, length - e.bytesTransferred);
+                    InterruptedIOException cancelled = new InterruptedIOException("Write interrupted!");
+                    cancelled.bytesTransferred = request.mOffset - request.mStart;
+                    Thread.currentThread().interrupt();
+                    throw cancelled;
+                }
+                // A partially written compressed block breaks the deflate stream, so drop the connection to reconnect
+                error = e;
+                try {
+                    mTransport.close();
+                } catch (IOException e2) {
+                    // The read loop ends anyway
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (mLaneLock) {
+                mWriting = false;
+                if (error != null) {
+                    // The connection is broken, so fail all queued requests
+                    fail(head, error);
+                    for (WriteRequest r : mUrgentLane)
+                        fail(r, error);
+                    for (WriteRequest r : mBulkLane)
+                        fail(r, error);
+                    mUrgentLane.clear();
+                    mBulkLane.clear();
+                } else if (head.mOffset == head.mEnd) {
+                    head.mDone = true;
+                }
+                mLaneLock.notifyAll();
+            }
+        }
+    }
+
+    private ArrayDeque<WriteRequest> getLane(WriteRequest request) {
+        return request.mUrgent ? mUrgentLane : mBulkLane;
+    }
+
+    /**
+     * Remove the request of an interrupted thread from its lane, after giving the unwritten bytes of the interrupted chunk back to the request it belongs to, or completing that request if its last chunk was written.
+     */
+    private void cancel(WriteRequest request, WriteRequest head, int unwritten) {
+        synchronized (mLaneLock) {
+            mWriting = false;
+            if (unwritten > 0) {
+                if (head.mOffset == head.mEnd)
+                    getLane(head).addFirst(head); // Taken off its lane with its last chunk
+                head.mOffset -= unwritten;
+            } else if (head != request && head.mOffset == head.mEnd) {
+                head.mDone = true;
+            }
+            getLane(request).remove(request);
+            request.mDone = true;
+            mLaneLock.notifyAll();
+        }
+    }
+
+    private static void fail(WriteRequest request, IOException error) {
+        request.mDone = true;
+        request.mError = error;
+    }
+
+    private void writeChunk(byte[] data, int offset, int length) throws IOException {
+        if (mTrace != null)
+            mTrace.beginSection(BluetoothSerialTrace.SECTION_WRITE);
+        try {
+            if (mCompression != null)
+                mCompression.write(data, offset, length);
+            else
+                writeRaw(data, offset, length);
+        } finally {
+            if (mTrace != null)
+                mTrace.endSection();
+        }
+    }
+
+    @Override
+    public void writeRaw(byte[] data, int offset, int length) throws IOException {
+        if (mPacer != null)
+            mPacer.write(mOutputStream, data, offset, length);
+        else
+            mOutputStream.write(data, offset, length);
+    }
+
+    /**
+     * Close the connection. The read loop ends and the stream listeners are notified on the reading thread.
+     *
+     * @throws IOException if the transport cannot be closed
+     */
+    public void close() throws IOException {
+        if (mPacer != null)
+            mPacer.close();
+        if (mCompression != null)
+            mCompression.close();
+        mTransport.close();
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking {@link java.io.InputStream} view of the bytes read from a serial link, for existing parsers expecting a plain stream, e.g. NMEA, Modbus or MAVLink. The bytes are copied once from the connection's read buffer into a ring buffer on the I/O thread and read from there directly, without a bridging thread.
+ *
+ * <p>When the ring buffer is full because the stream is not read fast enough, further bytes are discarded and counted by {@link #getOverflowCount()}. When the connection is closed, reads return the remaining bytes and then end of stream until the link is connected again.</p>
+ *
+ * @author Macro Yau
+ */
+public class SerialInputStream extends InputStream implements BluetoothSerialStreamListener {
+
+    private static final int DEFAULT_CAPACITY = 16384;
+
+    private final SerialLink mSerial;
+    private final byte[] mRing;
+    private int mHead; // Index of the next byte to be read
+    private int mCount;
+    private long mTimeout; // ms, or 0 to wait indefinitely
+    private long mOverflowCount;
+    private boolean mConnected;
+    private boolean mClosed;
+
+    /**
+     * Constructor. Up to 16 KiB are buffered. The stream registers itself as a stream listener of the link and takes the current connection state from the link.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to read from, e.g. a {@code BluetoothSerial}.
+     */
+    public SerialInputStream(SerialLink serial) {
+        this(serial, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor. The stream registers itself as a stream listener of the link and takes the current connection state from the link.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to read from, e.g. a {@code BluetoothSerial}.
+     * @param capacity The number of bytes buffered.
+     */
+    public SerialInputStream(SerialLink serial, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive!");
+
+        mSerial = serial;
+        mRing = new byte[capacity];
+        synchronized (this) {
+            // Query the state after registering and before any event is handled, so that a later event takes precedence
+            serial.addStreamListener(this);
+            mConnected = serial.isConnected();
+        }
+    }
+
+    /**
+     * Set the maximum time a read waits for data. A read timing out throws a {@link java.net.SocketTimeoutException}.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait indefinitely.
+     */
+    public synchronized void setReadTimeout(long timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout must not be negative!");
+
+        mTimeout = timeout;
+    }
+
+    /**
+     * Get the number of bytes discarded because the buffer was full.
+     *
+     * @return the number of discarded bytes
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!awaitData())
+            return -1;
+
+        int b = mRing[mHead] & 0xFF;
+        mHead = (mHead + 1) % mRing.length;
+        mCount--;
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+            throw new IndexOutOfBoundsException();
+        if (length == 0)
+            return 0;
+
+        if (!awaitData())
+            return -1;
+
+        // Copy out in up to two parts around the end of the ring
+        int n = Math.min(length, mCount);
+        int first = Math.min(n, mRing.length - mHead);
+        System.arraycopy(mRing, mHead, buffer, offset, first);
+        System.arraycopy(mRing, 0, buffer, offset + first, n - first);
+        mHead = (mHead + n) % mRing.length;
+        mCount -= n;
+        return n;
+    }
+
+    /**
+     * Wait until bytes are buffered.
+     *
+     * @return false if the connection is closed and no bytes are left
+     */
+    private boolean awaitData() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeout);
+        while (mCount == 0) {
+            if (mClosed)
+                throw new IOException("Stream closed!");
+            if (!mConnected)
+                return false;
+
+            try {
+                if (mTimeout == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        throw new SocketTimeoutException("Read timed out!");
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data!");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, mCount));
+        mHead = (int) ((mHead + skipped) % mRing.length);
+        mCount -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed!");
+        return mCount;
+    }
+
+    /**
+     * Close the stream and stop buffering the bytes read from the link.
+     */
+    @Override
+    public void close() {
+        mSerial.removeStreamListener(this);
+        synchronized (this) {
+            mClosed = true;
+            mCount = 0;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void onStreamOpened() {
+        mConnected = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+        if (mClosed)
+            return;
+
+        int n = Math.min(length, mRing.length - mCount);
+        mOverflowCount += length - n;
+
+        // Copy in up to two parts around the end of the ring
+        int tail = (mHead + mCount) % mRing.length;
+        int first = Math.min(n, mRing.length - tail);
+        System.arraycopy(buffer, offset, mRing, tail, first);
+        System.arraycopy(buffer, offset + first, mRing, 0, n - first);
+        mCount += n;
+        if (n > 0)
+            notifyAll();
+    }
+
+    @Override
+    public synchronized void onStreamClosed() {
+        mConnected = false;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.macroyau.blue2serial;
+
+/**
+ * Stage of the byte processing pipeline of a serial connection, e.g. escaping, checksumming, encryption, logging or filtering. Interceptors are ordered from the application side to the wire side: written bytes pass through them in order and read bytes in reverse order.
+ *
+ * <p>The calls to an interceptor never overlap, although they come from different threads: reads on the connection's I/O thread and writes on the writing threads. An interceptor may therefore keep state without locking, but should return quickly, as a slow transformation delays both directions.</p>
+ *
+ * <p>Each stage transforms a shared {@link com.macroyau.blue2serial.SerialBuffer} in place where possible, and otherwise into the spare array of the buffer, which is reused from call to call. Stacking stages therefore does not add allocations or copies beyond what each transformation needs.</p>
+ *
+ * @author Macro Yau
+ */
+public interface SerialInterceptor {
+
+    /**
+     * A connection is established. Reset any state kept from the previous connection.
+     */
+    void onOpened();
+
+    /**
+     * Transform bytes to be written. Called with the writes in call order, one at a time, although an urgent write may then be sent ahead of bulk writes transformed earlier. The buffer holds a private copy of the written data which may be modified in place.
+     *
+     * @param buffer The buffer holding the bytes to be written, to be transformed.
+     */
+    void onWrite(SerialBuffer buffer);
+
+    /**
+     * Transform bytes read, on the connection's I/O thread. The buffer is reused for the next read. Leave the buffer empty to discard the bytes.
+     *
+     * @param buffer The buffer holding the bytes read, to be transformed.
+     */
+    void onRead(SerialBuffer buffer);
+
+}
@@ -0,0 +1,53 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+
+/**
+ * Serial link used by the protocol helpers, e.g. {@link com.macroyau.blue2serial.BluetoothSerialKeepalive} and {@link com.macroyau.blue2serial.BluetoothSerialMultiplexer}, so that they do not depend on the Android connection management and can run on a desktop JVM.
+ *
+ * @author Macro Yau
+ */
+public interface SerialLink {
+
+    /**
+     * Write the specified bytes to the serial port.
+     *
+     * @param data The data to be written.
+     */
+    void write(byte[] data);
+
+    /**
+     * Write the specified bytes to the serial port on the caller's thread, blocking until they are written, e.g. for a helper which takes turns between its own writers.
+     *
+     * @param data The data to be written.
+     * @throws IOException if the link is not connected, the write fails or the thread is interrupted
+     */
+    void writeAndWait(byte[] data) throws IOException;
+
+    /**
+     * Return true if the link is connected, e.g. for a stream opened while connected to know the current state.
+     *
+     * @return true if connected
+     */
+    boolean isConnected();
+
+    /**
+     * Add a listener to be invoked on the connection's I/O thread for the byte stream.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialStreamListener} to add.
+     */
+    void addStreamListener(BluetoothSerialStreamListener listener);
+
+    /**
+     * Remove a listener previously added by {@link #addStreamListener(BluetoothSerialStreamListener)}.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialStreamListener} to remove.
+     */
+    void removeStreamListener(BluetoothSerialStreamListener listener);
+
+    /**
+     * Drop the current connection as if it was lost, e.g. when the link is found to be dead.
+     */
+    void dropConnection();
+
+}
@@ -0,0 +1,100 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered {@link java.io.OutputStream} view of a serial link, for existing encoders writing to a plain stream. Bytes are collected and written to the link as one write when the buffer is full or the stream is flushed. Writes to the link block until the bytes are written, and throw an {@link java.io.IOException} if the link is not connected or the write fails, in which case the buffered bytes are discarded.
+ *
+ * @author Macro Yau
+ */
+public class SerialOutputStream extends OutputStream {
+
+    private static final int DEFAULT_BUFFER_SIZE = 512;
+
+    private final SerialLink mSerial;
+    private final byte[] mBuffer;
+    private int mCount;
+    private boolean mClosed;
+
+    /**
+     * Constructor. Up to 512 bytes are buffered.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to write to, e.g. a {@code BluetoothSerial}.
+     */
+    public SerialOutputStream(SerialLink serial) {
+        this(serial, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serial The {@link com.macroyau.blue2serial.SerialLink} to write to, e.g. a {@code BluetoothSerial}.
+     * @param bufferSize The number of bytes buffered before they are written to the link.
+     */
+    public SerialOutputStream(SerialLink serial, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive!");
+
+        mSerial = serial;
+        mBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        checkOpen();
+        if (mCount == mBuffer.length)
+            flushBuffer();
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        checkOpen();
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException();
+
+        if (length >= mBuffer.length) {
+            // Write large arrays through without buffering
+            flushBuffer();
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            mSerial.writeAndWait(chunk);
+            return;
+        }
+
+        if (length > mBuffer.length - mCount)
+            flushBuffer();
+        System.arraycopy(data, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            byte[] data = new byte[mCount];
+            System.arraycopy(mBuffer, 0, data, 0, mCount);
+            mCount = 0;
+            mSerial.writeAndWait(data);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed!");
+    }
+
+}
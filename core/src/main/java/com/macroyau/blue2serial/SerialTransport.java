@@ -0,0 +1,37 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream transport carrying a serial connection, e.g. a Bluetooth RFCOMM socket on Android, or a pipe or a TCP socket on a desktop JVM.
+ *
+ * @author Macro Yau
+ */
+public interface SerialTransport {
+
+    /**
+     * Get the stream of the bytes read from the remote device. Reads block until data is available, and fail once the transport is closed.
+     *
+     * @return the input stream
+     * @throws IOException if the stream cannot be opened
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Get the stream of the bytes written to the remote device.
+     *
+     * @return the output stream
+     * @throws IOException if the stream cannot be opened
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the transport, unblocking any pending read.
+     *
+     * @throws IOException if the transport cannot be closed
+     */
+    void close() throws IOException;
+
+}
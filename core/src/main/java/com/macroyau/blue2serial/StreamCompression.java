@@ -0,0 +1,395 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional deflate compression of a Bluetooth serial connection's byte stream.
+ *
+ * <p>Compression is negotiated in-band. A side with compression enabled sends an offer marker when the connection is established. A side receiving an offer or a start marker answers with its own start marker, and each direction of the stream switches to compressed blocks right after its start marker. A peer without compression support never answers, so the stream stays uncompressed.</p>
+ *
+ * <p>Outbound bytes are collected into blocks which are flushed when full or when the oldest pending byte has waited for the maximum delay, whichever comes first. Each block is compressed independently as {@code flag, length (2 bytes, big-endian), data}, where the flag tells whether the data is deflated or stored as is.</p>
+ *
+ * <p>Delayed flushes and the markers are written on a flusher thread of this instance, so that a stalled connection delays only its own flushes, and the reading thread never blocks on a write, e.g. while paused by an XOFF which only the reading thread can clear.</p>
+ *
+ * @author Macro Yau
+ */
+class StreamCompression {
+
+    /**
+     * Sink of the raw bytes to be written to the serial port.
+     */
+    interface RawWriter {
+
+        void writeRaw(byte[] data, int offset, int length) throws IOException;
+
+    }
+
+    /**
+     * Receiver of the decompressed bytes read from the serial port.
+     */
+    interface DecodedReader {
+
+        void onDecoded(byte[] buffer, int offset, int length);
+
+    }
+
+    private static final byte[] MARKER_PREFIX = { 0x1B, 'B', '2', 'Z' };
+    private static final byte MARKER_OFFER = '?';
+    private static final byte MARKER_START = '!';
+
+    private static final byte BLOCK_STORED = 0;
+    private static final byte BLOCK_DEFLATED = 1;
+    private static final int BLOCK_HEADER_LENGTH = 3;
+    private static final int MAX_BLOCK_LENGTH = 0xFFFF;
+
+    private static final int PARSE_FLAG = 0;
+    private static final int PARSE_LENGTH_HIGH = 1;
+    private static final int PARSE_LENGTH_LOW = 2;
+    private static final int PARSE_DATA = 3;
+
+    private final RawWriter mWriter;
+    private final long mMaxDelay;
+    private final int mBlockSize;
+    private final ScheduledExecutorService mFlushExecutor; // Writes the delayed flushes and the markers
+
+    // Outbound
+    private final Deflater mDeflater;
+    private final byte[] mPending;
+    private int mPendingLength;
+    private final byte[] mBlock = new byte[BLOCK_HEADER_LENGTH + MAX_BLOCK_LENGTH];
+    private ScheduledFuture<?> mFlushFuture;
+    private boolean mOutboundCompressed;
+    private final AtomicBoolean mStartQueued = new AtomicBoolean();
+    private volatile boolean mClosed;
+
+    // Inbound
+    private final Inflater mInflater = new Inflater();
+    private final byte[] mInflated;
+    private final byte[] mFrame = new byte[MAX_BLOCK_LENGTH];
+    private final byte[] mHeldMarker = new byte[MARKER_PREFIX.length];
+    private volatile boolean mInboundCompressed;
+    private int mMarkerMatched;
+    private int mParseState = PARSE_FLAG;
+    private int mParseFlag, mParseLength, mParseOffset;
+
+    /**
+     * Constructor.
+     *
+     * @param writer The sink of the raw bytes to be written.
+     * @param maxDelay The maximum time in milliseconds an outbound byte may wait for its block to fill up.
+     * @param blockSize The maximum number of uncompressed bytes in an outbound block.
+     * @param level The deflate compression level between 1 and 9.
+     */
+    StreamCompression(RawWriter writer, long maxDelay, int blockSize, int level) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_LENGTH / 2)
+            throw new IllegalArgumentException("Invalid block size!");
+
+        mWriter = writer;
+        mMaxDelay = maxDelay;
+        mBlockSize = blockSize;
+        mDeflater = new Deflater(level);
+        mPending = new byte[blockSize];
+        mInflated = new byte[blockSize * 4];
+        mFlushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StreamCompression");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Offer compression to the remote device. The offer is written on the flusher thread.
+     */
+    void offer() {
+        execute(mOfferRunnable);
+    }
+
+    /**
+     * Wait until the markers and the flushes queued so far are written.
+     */
+    void awaitQueuedWrites() throws InterruptedException {
+        try {
+            mFlushExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // Nothing more is written once closed
+        }
+    }
+
+    /**
+     * Return true if both directions of the stream are compressed.
+     */
+    boolean isActive() {
+        synchronized (this) {
+            if (!mOutboundCompressed)
+                return false;
+        }
+        return mInboundCompressed;
+    }
+
+    private void writeMarker(byte type) throws IOException {
+        byte[] marker = new byte[MARKER_PREFIX.length + 1];
+        System.arraycopy(MARKER_PREFIX, 0, marker, 0, MARKER_PREFIX.length);
+        marker[MARKER_PREFIX.length] = type;
+        mWriter.writeRaw(marker, 0, marker.length);
+    }
+
+    /**
+     * Queue the start marker, after which the outbound stream switches to compressed blocks. Called on the reading thread, which must neither write nor wait for a writing thread.
+     */
+    private void startOutbound() {
+        if (mStartQueued.compareAndSet(false, true))
+            execute(mStartRunnable);
+    }
+
+    private void execute(Runnable r) {
+        if (mClosed)
+            return;
+        try {
+            mFlushExecutor.execute(r);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Write the specified bytes, compressing them if the outbound stream has switched to compressed blocks.
+     */
+    synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (mClosed)
+            return;
+        if (!mOutboundCompressed) {
+            mWriter.writeRaw(data, offset, length);
+            return;
+        }
+
+        while (length > 0) {
+            int n = Math.min(length, mBlockSize - mPendingLength);
+            System.arraycopy(data, offset, mPending, mPendingLength, n);
+            mPendingLength += n;
+            offset += n;
+            length -= n;
+            if (mPendingLength == mBlockSize)
+                flush();
+        }
+
+        if (mPendingLength > 0 && mFlushFuture == null)
+            mFlushFuture = mFlushExecutor.schedule(mFlushRunnable, mMaxDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the pending bytes as a block immediately.
+     */
+    synchronized void flush() throws IOException {
+        if (mFlushFuture != null) {
+            mFlushFuture.cancel(false);
+            mFlushFuture = null;
+        }
+        if (mPendingLength == 0 || mClosed)
+            return;
+
+        mDeflater.reset();
+        mDeflater.setInput(mPending, 0, mPendingLength);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished() && length < mPendingLength) {
+            length += mDeflater.deflate(mBlock, BLOCK_HEADER_LENGTH + length, mPendingLength - length);
+        }
+
+        if (mDeflater.finished() && length < mPendingLength) {
+            mBlock[0] = BLOCK_DEFLATED;
+        } else {
+            // Incompressible data is sent as is
+            length = mPendingLength;
+            System.arraycopy(mPending, 0, mBlock, BLOCK_HEADER_LENGTH, length);
+            mBlock[0] = BLOCK_STORED;
+        }
+        mBlock[1] = (byte) (length >> 8);
+        mBlock[2] = (byte) length;
+        mPendingLength = 0;
+        mWriter.writeRaw(mBlock, 0, BLOCK_HEADER_LENGTH + length);
+    }
+
+    /**
+     * Decode the specified bytes read from the serial port, handling the negotiation markers and decompressing the blocks.
+     */
+    void read(byte[] buffer, int offset, int length, DecodedReader reader) throws IOException {
+        int end = offset + length;
+        if (mInboundCompressed) {
+            readBlocks(buffer, offset, end, reader);
+            return;
+        }
+
+        int held = mMarkerMatched; // Marker bytes held back from the previous reads
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (mMarkerMatched == MARKER_PREFIX.length && (b == MARKER_OFFER || b == MARKER_START)) {
+                int markerStart = i - (MARKER_PREFIX.length - held);
+                if (markerStart > runStart)
+                    reader.onDecoded(buffer, runStart, markerStart - runStart);
+                runStart = i + 1;
+                held = 0;
+                mMarkerMatched = 0;
+
+                if (b == MARKER_START) {
+                    mInboundCompressed = true;
+                    startOutbound();
+                    readBlocks(buffer, i + 1, end, reader);
+                    return;
+                } else {
+                    startOutbound();
+                }
+            } else if (mMarkerMatched < MARKER_PREFIX.length && b == MARKER_PREFIX[mMarkerMatched]) {
+                mMarkerMatched++;
+            } else {
+                if (held > 0) {
+                    // Deliver a copy, as the reader may transform the bytes in place
+                    System.arraycopy(MARKER_PREFIX, 0, mHeldMarker, 0, held);
+                    reader.onDecoded(mHeldMarker, 0, held);
+                    held = 0;
+                }
+                mMarkerMatched = (b == MARKER_PREFIX[0]) ? 1 : 0;
+            }
+        }
+
+        int runEnd = end - (mMarkerMatched - held);
+        if (runEnd > runStart)
+            reader.onDecoded(buffer, runStart, runEnd - runStart);
+    }
+
+    private void readBlocks(byte[] buffer, int offset, int end, DecodedReader reader) throws IOException {
+        int i = offset;
+        while (i < end) {
+            switch (mParseState) {
+                case PARSE_FLAG:
+                    mParseFlag = buffer[i++];
+                    mParseState = PARSE_LENGTH_HIGH;
+                    break;
+                case PARSE_LENGTH_HIGH:
+                    mParseLength = (buffer[i++] & 0xFF) << 8;
+                    mParseState = PARSE_LENGTH_LOW;
+                    break;
+                case PARSE_LENGTH_LOW:
+                    mParseLength |= buffer[i++] & 0xFF;
+                    mParseOffset = 0;
+                    mParseState = PARSE_DATA;
+                    break;
+                case PARSE_DATA:
+                    int n = Math.min(end - i, mParseLength - mParseOffset);
+                    System.arraycopy(buffer, i, mFrame, mParseOffset, n);
+                    mParseOffset += n;
+                    i += n;
+                    break;
+            }
+
+            if (mParseState == PARSE_DATA && mParseOffset == mParseLength) {
+                mParseState = PARSE_FLAG;
+                if (mParseFlag == BLOCK_DEFLATED)
+                    inflate(reader);
+                else if (mParseFlag == BLOCK_STORED)
+                    reader.onDecoded(mFrame, 0, mParseLength);
+                else
+                    throw new IOException("Corrupted compressed block!");
+            }
+        }
+    }
+
+    private void inflate(DecodedReader reader) throws IOException {
+        mInflater.reset();
+        mInflater.setInput(mFrame, 0, mParseLength);
+        try {
+            while (!mInflater.finished()) {
+                int n = mInflater.inflate(mInflated);
+                if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary()))
+                    throw new IOException("Truncated compressed block!");
+                reader.onDecoded(mInflated, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed block!");
+        }
+    }
+
+    /**
+     * Release the compressor and stop the flusher thread. Pending outbound bytes are discarded. May be called on any thread, so the decompressor, which is used by the reading thread without locking, is released by {@link #endInbound()} instead.
+     */
+    synchronized void close() {
+        mClosed = true;
+        if (mFlushFuture != null) {
+            mFlushFuture.cancel(false);
+            mFlushFuture = null;
+        }
+        mFlushExecutor.shutdownNow();
+        mDeflater.end();
+    }
+
+    /**
+     * Release the decompressor. Must be called on the reading thread once it stops reading.
+     */
+    void endInbound() {
+        mInflater.end();
+    }
+
+    private final Runnable mOfferRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamCompression.this) {
+                if (mClosed)
+                    return;
+                try {
+                    writeMarker(MARKER_OFFER);
+                } catch (IOException e) {
+                    // The connection is lost and the read loop will clean up
+                }
+            }
+        }
+    };
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamCompression.this) {
+                if (mClosed)
+                    return;
+                try {
+                    writeMarker(MARKER_START);
+                    mOutboundCompressed = true;
+                } catch (IOException e) {
+                    // The connection is lost and the read loop will clean up
+                }
+            }
+        }
+    };
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamCompression.this) {
+                mFlushFuture = null;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    // The connection is lost and the read loop will clean up
+                }
+            }
+        }
+    };
+
+}
@@ -0,0 +1,138 @@
+package com.macroyau.blue2serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pacing of the raw bytes written to the serial port, so that a slow UART behind the Bluetooth module is not overrun.
+ *
+ * <p>Writes are metered through a token bucket refilled at the configured rate, and split into chunks no larger than the bucket so that the module's buffer only ever receives a burst it can hold. Optionally, XON/XOFF bytes on the inbound stream pause and resume the outbound stream between chunks.</p>
+ *
+ * @author Macro Yau
+ */
+class WritePacer {
+
+    static final byte XON = 0x11;
+    static final byte XOFF = 0x13;
+
+    private static final int UNPACED_CHUNK_SIZE = 64;
+
+    private final double mRate; // bytes/s, or 0 if unlimited
+    private final int mBurst;
+    private final boolean mFlowControl;
+
+    private double mTokens;
+    private long mLastRefill;
+    private boolean mPaused;
+    private boolean mClosed;
+
+    /**
+     * Constructor.
+     *
+     * @param rate The sustained rate in bytes per second, or 0 to write as fast as possible.
+     * @param burst The maximum number of bytes written at once.
+     * @param flowControl Set to true to honor XON/XOFF bytes on the inbound stream.
+     */
+    WritePacer(double rate, int burst, boolean flowControl) {
+        mRate = rate;
+        mBurst = (rate > 0) ? Math.max(1, burst) : UNPACED_CHUNK_SIZE;
+        mFlowControl = flowControl;
+        mTokens = mBurst;
+        mLastRefill = System.nanoTime();
+    }
+
+    /**
+     * Write the specified bytes at the paced rate, blocking the calling thread as needed. If the thread is interrupted, the {@link java.io.InterruptedIOException} tells the number of bytes written before.
+     */
+    void write(OutputStream out, byte[] data, int offset, int length) throws IOException {
+        int start = offset;
+        int end = offset + length;
+        while (offset < end) {
+            int chunk = Math.min(end - offset, mBurst);
+            try {
+                acquire(chunk);
+            } catch (InterruptedIOException e) {
+                e.bytesTransferred = offset - start;
+                throw e;
+            }
+            out.write(data, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    private synchronized void acquire(int n) throws IOException {
+        try {
+            while (true) {
+                if (mClosed)
+                    throw new IOException("Connection closed while pacing a write!");
+
+                if (mPaused) {
+                    wait();
+                    continue;
+                }
+
+                if (mRate <= 0)
+                    return;
+
+                long now = System.nanoTime();
+                mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / 1e9);
+                mLastRefill = now;
+                if (mTokens >= n) {
+                    mTokens -= n;
+                    return;
+                }
+
+                long delay = (long) Math.ceil((n - mTokens) * 1e9 / mRate);
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing a write!");
+        }
+    }
+
+    /**
+     * Handle the XON/XOFF bytes in the specified bytes read from the serial port, and remove them from the buffer.
+     *
+     * @return the number of bytes remaining
+     */
+    int filterInbound(byte[] buffer, int offset, int length) {
+        if (!mFlowControl)
+            return length;
+
+        int end = offset + length;
+        int kept = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == XON || b == XOFF)
+                setPaused(b == XOFF);
+            else
+                buffer[kept++] = b;
+        }
+        return kept - offset;
+    }
+
+    private synchronized void setPaused(boolean paused) {
+        if (mPaused != paused) {
+            mPaused = paused;
+            if (!paused)
+                mLastRefill = System.nanoTime(); // No credit for the time spent paused
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Abort the writes waiting for tokens or for XON.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+}
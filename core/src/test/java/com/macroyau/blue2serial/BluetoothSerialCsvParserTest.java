@@ -0,0 +1,80 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluetoothSerialCsvParserTest {
+
+    private final List<double[]> mRecords = new ArrayList<>();
+    private final List<boolean[]> mIntegral = new ArrayList<>();
+    private BluetoothSerialCsvParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new BluetoothSerialCsvParser(new BluetoothSerialCsvParser.RecordListener() {
+            @Override
+            public void onRecord(BluetoothSerialCsvParser.Record record) {
+                double[] values = new double[record.getFieldCount()];
+                boolean[] integral = new boolean[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = record.getDouble(i);
+                    integral[i] = record.isIntegral(i);
+                }
+                mRecords.add(values);
+                mIntegral.add(integral);
+            }
+        });
+        mParser.onStreamOpened();
+    }
+
+    private void feed(String text) {
+        byte[] data = text.getBytes();
+        mParser.onStreamRead(data, 0, data.length, 0);
+    }
+
+    @Test
+    public void parsesNumbers() {
+        feed("1,-2.5,+3e2,4E-1, 7 ,.5\n");
+        assertEquals(1, mRecords.size());
+        double[] values = mRecords.get(0);
+        assertEquals(6, values.length);
+        assertEquals(1, values[0], 0);
+        assertEquals(-2.5, values[1], 0);
+        assertEquals(300, values[2], 0);
+        assertEquals(0.4, values[3], 1e-12);
+        assertEquals(7, values[4], 0);
+        assertEquals(0.5, values[5], 0);
+        assertTrue(mIntegral.get(0)[0]);
+        assertFalse(mIntegral.get(0)[1]);
+    }
+
+    @Test
+    public void parsesRecordsSplitAcrossReads() {
+        feed("12.");
+        feed("5,-");
+        feed("3\r");
+        feed("\n4\n");
+        assertEquals(2, mRecords.size());
+        assertEquals(12.5, mRecords.get(0)[0], 0);
+        assertEquals(-3, mRecords.get(0)[1], 0);
+        assertEquals(4, mRecords.get(1)[0], 0);
+    }
+
+    @Test
+    public void countsMalformedRecords() {
+        feed("1,x\n");
+        feed("1e ,2\n");
+        feed("-,3\n");
+        feed("5\n");
+        assertEquals(1, mRecords.size());
+        assertEquals(3, mParser.getMalformedCount());
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.macroyau.blue2serial;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluetoothSerialKeepaliveTest {
+
+    /**
+     * Link answering each ping with the reply if set to, and recording a dropped connection.
+     */
+    private static class PingLink implements SerialLink {
+
+        BluetoothSerialKeepalive mKeepalive;
+        volatile byte[] mReply;
+        final CountDownLatch mDropped = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] data) {
+            byte[] reply = mReply;
+            if (reply != null)
+                mKeepalive.onStreamRead(reply, 0, reply.length, System.nanoTime());
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) {
+            write(data);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void dropConnection() {
+            mDropped.countDown();
+        }
+
+    }
+
+    /**
+     * Listener recording the keepalive events.
+     */
+    private static class EventCollector implements BluetoothSerialKeepalive.KeepaliveListener {
+
+        final CountDownLatch mReplied = new CountDownLatch(3);
+        final CountDownLatch mDead = new CountDownLatch(1);
+        final List<Integer> mMissed = new ArrayList<>();
+
+        @Override
+        public void onPingReply(long roundTripNanos) {
+            mReplied.countDown();
+        }
+
+        @Override
+        public synchronized void onPingMissed(int missed) {
+            mMissed.add(missed);
+        }
+
+        @Override
+        public void onLinkDead() {
+            mDead.countDown();
+        }
+
+    }
+
+    private BluetoothSerialKeepalive mKeepalive;
+
+    @After
+    public void tearDown() {
+        if (mKeepalive != null)
+            mKeepalive.shutdown();
+    }
+
+    private BluetoothSerialKeepalive newKeepalive(PingLink link, EventCollector collector) {
+        mKeepalive = new BluetoothSerialKeepalive(link, "PING", "PONG");
+        mKeepalive.setListener(collector);
+        mKeepalive.setInterval(20);
+        mKeepalive.setTimeout(10);
+        mKeepalive.setMaxMissed(2);
+        link.mKeepalive = mKeepalive;
+        return mKeepalive;
+    }
+
+    @Test
+    public void matchesReplySplitAcrossReads() {
+        BluetoothSerialKeepalive.SequenceMatcher matcher = new BluetoothSerialKeepalive.SequenceMatcher("aab".getBytes());
+        byte[] read = "xaaab".getBytes();
+        assertFalse(matcher.match(read, 0, 3));
+        assertTrue("An overlapping prefix must not hide the reply", matcher.match(read, 3, 2));
+
+        matcher.match("aa".getBytes(), 0, 2);
+        matcher.reset();
+        assertFalse(matcher.match("b".getBytes(), 0, 1));
+    }
+
+    @Test
+    public void measuresRoundTripsWhileReplied() throws InterruptedException {
+        PingLink link = new PingLink();
+        link.mReply = "PONG".getBytes();
+        EventCollector collector = new EventCollector();
+        BluetoothSerialKeepalive keepalive = newKeepalive(link, collector);
+        keepalive.onStreamOpened();
+
+        assertTrue(collector.mReplied.await(2, TimeUnit.SECONDS));
+        assertTrue(keepalive.getRoundTripStats().getCount() >= 3);
+        assertEquals(0, keepalive.getMissedCount());
+        assertEquals(1, link.mDropped.getCount());
+    }
+
+    @Test
+    public void dropsConnectionAfterMissedReplies() throws InterruptedException {
+        PingLink link = new PingLink();
+        EventCollector collector = new EventCollector();
+        BluetoothSerialKeepalive keepalive = newKeepalive(link, collector);
+        keepalive.onStreamOpened();
+
+        assertTrue(link.mDropped.await(2, TimeUnit.SECONDS));
+        assertEquals(0, collector.mDead.getCount());
+        keepalive.onStreamClosed();
+        synchronized (collector) {
+            assertEquals(1, (int) collector.mMissed.get(0));
+            assertEquals(2, (int) collector.mMissed.get(1));
+        }
+    }
+
+    @Test
+    public void stopsPingingWhenClosed() throws InterruptedException {
+        PingLink link = new PingLink();
+        EventCollector collector = new EventCollector();
+        BluetoothSerialKeepalive keepalive = newKeepalive(link, collector);
+        keepalive.onStreamOpened();
+        keepalive.onStreamClosed();
+
+        assertFalse(link.mDropped.await(200, TimeUnit.MILLISECONDS));
+        synchronized (collector) {
+            assertTrue(collector.mMissed.isEmpty());
+        }
+    }
+
+}
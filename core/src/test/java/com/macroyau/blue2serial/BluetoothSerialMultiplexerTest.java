@@ -0,0 +1,186 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class BluetoothSerialMultiplexerTest {
+
+    /**
+     * Link collecting the frames written, failing the writes while set to.
+     */
+    private static class FrameLink implements SerialLink {
+
+        final BlockingQueue<byte[]> mFrames = new LinkedBlockingQueue<>();
+        volatile boolean mFailing;
+
+        @Override
+        public void write(byte[] data) {
+            throw new AssertionError("Frames must be written one at a time");
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) throws IOException {
+            if (mFailing)
+                throw new IOException("Not connected!");
+            mFrames.add(data);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !mFailing;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void dropConnection() {
+        }
+
+    }
+
+    /**
+     * Listener collecting the bytes received on one channel.
+     */
+    private static class ChannelCollector implements BluetoothSerialMultiplexer.ChannelListener {
+
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+        @Override
+        public void onChannelRead(int channel, byte[] buffer, int offset, int length) {
+            mReceived.write(buffer, offset, length);
+        }
+
+    }
+
+    private static byte[] takeFrame(FrameLink link) throws InterruptedException {
+        byte[] frame = link.mFrames.poll(1, TimeUnit.SECONDS);
+        assertNotNull("No frame is written", frame);
+        return frame;
+    }
+
+    @Test
+    public void writesFramesWithCrc() throws InterruptedException {
+        FrameLink link = new FrameLink();
+        BluetoothSerialMultiplexer mux = new BluetoothSerialMultiplexer(link);
+        mux.write(3, "hello");
+        mux.onStreamOpened();
+        try {
+            byte[] frame = takeFrame(link);
+            assertEquals(4 + 5 + 2, frame.length);
+            assertArrayEquals(new byte[] { (byte) 0xB2, 3, 0, 5, 'h', 'e', 'l', 'l', 'o' }, Arrays.copyOf(frame, 9));
+            assertEquals(Crc16.compute(frame, 1, 8), ((frame[9] & 0xFF) << 8) | (frame[10] & 0xFF));
+        } finally {
+            mux.onStreamClosed();
+        }
+    }
+
+    @Test
+    public void parsesFramesSplitAcrossReads() throws InterruptedException {
+        FrameLink link = new FrameLink();
+        BluetoothSerialMultiplexer sender = new BluetoothSerialMultiplexer(link);
+        sender.write(7, "split frame");
+        sender.onStreamOpened();
+        byte[] frame;
+        try {
+            frame = takeFrame(link);
+        } finally {
+            sender.onStreamClosed();
+        }
+
+        BluetoothSerialMultiplexer receiver = new BluetoothSerialMultiplexer(new FrameLink());
+        ChannelCollector collector = new ChannelCollector();
+        receiver.setChannelListener(7, collector);
+        byte[] noise = { 'x', 'y' };
+        receiver.onStreamRead(noise, 0, noise.length, 0);
+        for (int i = 0; i < frame.length; i++)
+            receiver.onStreamRead(frame, i, 1, 0);
+        assertArrayEquals("split frame".getBytes(), collector.mReceived.toByteArray());
+        assertEquals(2, receiver.getDiscardedBytes());
+    }
+
+    @Test
+    public void discardsCorruptFramesAndResynchronises() throws InterruptedException {
+        FrameLink link = new FrameLink();
+        BluetoothSerialMultiplexer sender = new BluetoothSerialMultiplexer(link, 16);
+        sender.write(1, "first");
+        sender.write(2, "second");
+        sender.onStreamOpened();
+        byte[] first, second;
+        try {
+            first = takeFrame(link);
+            second = takeFrame(link);
+        } finally {
+            sender.onStreamClosed();
+        }
+
+        BluetoothSerialMultiplexer receiver = new BluetoothSerialMultiplexer(new FrameLink(), 16);
+        ChannelCollector collector = new ChannelCollector();
+        receiver.setChannelListener(1, collector);
+        receiver.setChannelListener(2, collector);
+
+        // A corrupted payload fails the CRC, and a length above the maximum payload is rejected at the header
+        first[5] ^= 0x20;
+        receiver.onStreamRead(first, 0, first.length, 0);
+        byte[] badLength = { (byte) 0xB2, 1, 0x7F, (byte) 0xFF };
+        receiver.onStreamRead(badLength, 0, badLength.length, 0);
+        receiver.onStreamRead(second, 0, second.length, 0);
+
+        assertArrayEquals("second".getBytes(), collector.mReceived.toByteArray());
+        assertEquals(2, receiver.getCorruptFrames());
+    }
+
+    @Test
+    public void servesChannelsInRoundRobinOrder() throws InterruptedException {
+        FrameLink link = new FrameLink();
+        BluetoothSerialMultiplexer mux = new BluetoothSerialMultiplexer(link, 4);
+        mux.write(1, new byte[12]);
+        mux.write(2, new byte[8]);
+        mux.write(5, new byte[4]);
+        mux.onStreamOpened();
+        try {
+            int[] expected = { 1, 2, 5, 1, 2, 1 };
+            for (int channel : expected)
+                assertEquals(channel, takeFrame(link)[1]);
+            assertEquals(0, mux.getQueuedBytes(1));
+        } finally {
+            mux.onStreamClosed();
+        }
+    }
+
+    @Test
+    public void writesUnsentFrameFirstAfterReconnecting() throws InterruptedException {
+        FrameLink link = new FrameLink();
+        link.mFailing = true;
+        BluetoothSerialMultiplexer mux = new BluetoothSerialMultiplexer(link, 4);
+        mux.write(1, "abcd");
+        mux.onStreamOpened(); // The first frame fails and is kept
+        mux.onStreamClosed();
+
+        link.mFailing = false;
+        mux.write(2, "efgh");
+        mux.onStreamOpened();
+        try {
+            assertEquals(1, takeFrame(link)[1]);
+            assertEquals(2, takeFrame(link)[1]);
+        } finally {
+            mux.onStreamClosed();
+        }
+    }
+
+}
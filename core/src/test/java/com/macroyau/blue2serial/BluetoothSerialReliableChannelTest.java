@@ -0,0 +1,187 @@
+package com.macroyau.blue2serial;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BluetoothSerialReliableChannelTest {
+
+    /**
+     * Link delivering the writes to a peer, dropping every n-th write if set, and failing the blocking writes while set to.
+     */
+    private static class LoopbackLink implements SerialLink {
+
+        BluetoothSerialStreamListener mPeer;
+        BlockingQueue<byte[]> mWrites;
+        int mDropEvery;
+        volatile boolean mFailing;
+        final Semaphore mFailures = new Semaphore(0);
+        private int mCount;
+
+        @Override
+        public synchronized void write(byte[] data) {
+            if (mWrites != null)
+                mWrites.add(data);
+            if (mPeer != null && (mDropEvery == 0 || ++mCount % mDropEvery != 0))
+                mPeer.onStreamRead(data, 0, data.length, System.nanoTime());
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) throws IOException {
+            if (mFailing) {
+                mFailures.release();
+                throw new IOException("Not connected!");
+            }
+            write(data);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void dropConnection() {
+        }
+
+    }
+
+    private final List<BluetoothSerialReliableChannel> mChannels = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (BluetoothSerialReliableChannel c : mChannels)
+            c.shutdown();
+    }
+
+    private BluetoothSerialReliableChannel newChannel(SerialLink link, final ByteArrayOutputStream received) {
+        BluetoothSerialReliableChannel channel = new BluetoothSerialReliableChannel(link, new BluetoothSerialReliableChannel.ReliableListener() {
+            @Override
+            public void onReliableRead(byte[] buffer, int offset, int length) {
+                synchronized (received) {
+                    received.write(buffer, offset, length);
+                }
+            }
+        }, 64);
+        mChannels.add(channel);
+        return channel;
+    }
+
+    @Test
+    public void writesFramesWithCrc() throws InterruptedException {
+        LoopbackLink link = new LoopbackLink();
+        link.mWrites = new LinkedBlockingQueue<>();
+        BluetoothSerialReliableChannel channel = newChannel(link, new ByteArrayOutputStream());
+        channel.onStreamOpened();
+
+        byte[] ack = link.mWrites.poll(1, TimeUnit.SECONDS);
+        assertNotNull(ack);
+        assertEquals(8, ack.length);
+        assertEquals((byte) 0xA5, ack[0]);
+        assertEquals(0x02, ack[1]);
+        assertTrue(Crc16.check(ack, 1, 5));
+
+        channel.write("hello");
+        byte[] frame = link.mWrites.poll(1, TimeUnit.SECONDS);
+        assertNotNull(frame);
+        assertEquals(8 + 5 + 2, frame.length);
+        assertEquals((byte) 0xA5, frame[0]);
+        assertEquals(0x01, frame[1]);
+        assertEquals(0, frame[2] | frame[3] | frame[4] | frame[5]); // First sequence number
+        assertEquals(5, ((frame[6] & 0xFF) << 8) | (frame[7] & 0xFF));
+        assertEquals("hello", new String(frame, 8, 5));
+        assertTrue(Crc16.check(frame, 1, 7 + 5));
+    }
+
+    @Test
+    public void discardsCorruptFrames() throws InterruptedException {
+        LoopbackLink link = new LoopbackLink();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        BluetoothSerialReliableChannel channel = newChannel(link, received);
+        channel.onStreamOpened();
+
+        byte[] frame = { (byte) 0xA5, 0x01, 0, 0, 0, 0, 0, 2, 'h', 'i', 0, 0 };
+        Crc16.append(frame, 1, 9);
+        frame[9] = 'j';
+        channel.onStreamRead(frame, 0, frame.length, 0);
+        assertEquals(1, channel.getCorruptFrames());
+        assertEquals(0, received.size());
+
+        frame[9] = 'i';
+        channel.onStreamRead(frame, 0, frame.length, 0);
+        assertEquals("hi", received.toString());
+    }
+
+    @Test
+    public void deliversInOrderOverLossyLink() throws InterruptedException {
+        LoopbackLink ab = new LoopbackLink();
+        LoopbackLink ba = new LoopbackLink();
+        ab.mDropEvery = 5;
+        ba.mDropEvery = 7;
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        BluetoothSerialReliableChannel a = newChannel(ab, new ByteArrayOutputStream());
+        BluetoothSerialReliableChannel b = newChannel(ba, received);
+        a.setRetransmitTimeout(20);
+        b.setRetransmitTimeout(20);
+        ab.mPeer = b;
+        ba.mPeer = a;
+        a.onStreamOpened();
+        b.onStreamOpened();
+
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31);
+        a.write(data);
+
+        assertTrue("Data must be acknowledged", a.awaitAcknowledged(10000));
+        assertTrue(a.getRetransmittedFrames() > 0);
+        synchronized (received) {
+            assertArrayEquals(data, received.toByteArray());
+        }
+    }
+
+    @Test
+    public void resendsFramesWhichFailedAfterReopening() throws InterruptedException {
+        LoopbackLink link = new LoopbackLink();
+        link.mWrites = new LinkedBlockingQueue<>();
+        link.mFailing = true;
+        BluetoothSerialReliableChannel channel = newChannel(link, new ByteArrayOutputStream());
+        channel.write("hello");
+        channel.onStreamOpened();
+        assertTrue(link.mFailures.tryAcquire(1, TimeUnit.SECONDS));
+        channel.onStreamClosed();
+        assertEquals(5, channel.getUnacknowledgedBytes());
+
+        link.mFailing = false;
+        channel.onStreamOpened();
+        byte[] frame;
+        do {
+            frame = link.mWrites.poll(1, TimeUnit.SECONDS);
+            assertNotNull("The data frame must be sent again", frame);
+        } while (frame[1] != 0x01);
+        assertEquals(0, frame[2] | frame[3] | frame[4] | frame[5]);
+        assertEquals("hello", new String(frame, 8, 5));
+    }
+
+}
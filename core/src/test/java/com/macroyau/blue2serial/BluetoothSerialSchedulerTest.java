@@ -0,0 +1,147 @@
+package com.macroyau.blue2serial;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BluetoothSerialSchedulerTest {
+
+    /**
+     * Link collecting the writes, taking the specified time for each write.
+     */
+    private static class RecordingLink implements SerialLink {
+
+        final BlockingQueue<String> mWrites = new LinkedBlockingQueue<>();
+        volatile long mWriteTime;
+
+        @Override
+        public void write(byte[] data) {
+            mWrites.add(new String(data));
+            try {
+                Thread.sleep(mWriteTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) {
+            write(data);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void dropConnection() {
+        }
+
+    }
+
+    private BluetoothSerialScheduler mScheduler;
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null)
+            mScheduler.shutdown();
+    }
+
+    private static String take(RecordingLink link) throws InterruptedException {
+        String write = link.mWrites.poll(1, TimeUnit.SECONDS);
+        assertNotNull("No command is written", write);
+        return write;
+    }
+
+    @Test
+    public void mergesCommandsDueWithinTick() throws InterruptedException {
+        RecordingLink link = new RecordingLink();
+        mScheduler = new BluetoothSerialScheduler(link, 50);
+        mScheduler.schedule("A", 10000);
+        mScheduler.schedule("B", 10000);
+        mScheduler.onStreamOpened();
+
+        assertEquals("AB", take(link));
+        assertNull(link.mWrites.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void writesAtFixedRate() throws InterruptedException {
+        RecordingLink link = new RecordingLink();
+        mScheduler = new BluetoothSerialScheduler(link);
+        BluetoothSerialScheduler.Command command = mScheduler.schedule("P", 20);
+        mScheduler.onStreamOpened();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            assertEquals("P", take(link));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The first write is due at once, so nine periods pass until the tenth
+        assertTrue("Ten writes took " + elapsed + " ms", elapsed >= 9 * 20 - 5);
+        assertEquals(0, command.getMissedCount());
+    }
+
+    @Test
+    public void pausesWhileDisconnected() throws InterruptedException {
+        RecordingLink link = new RecordingLink();
+        mScheduler = new BluetoothSerialScheduler(link);
+        mScheduler.schedule("P", 10);
+        mScheduler.onStreamOpened();
+        take(link);
+
+        mScheduler.onStreamClosed();
+        Thread.sleep(50);
+        link.mWrites.clear(); // A write may have been taken just before closing
+        assertNull(link.mWrites.poll(100, TimeUnit.MILLISECONDS));
+
+        mScheduler.onStreamOpened();
+        assertEquals("P", take(link));
+    }
+
+    @Test
+    public void stopsWritingCancelledCommand() throws InterruptedException {
+        RecordingLink link = new RecordingLink();
+        mScheduler = new BluetoothSerialScheduler(link);
+        BluetoothSerialScheduler.Command command = mScheduler.schedule("C", 10);
+        mScheduler.schedule("K", 10000);
+        mScheduler.onStreamOpened();
+        take(link);
+
+        mScheduler.cancel(command);
+        Thread.sleep(20);
+        link.mWrites.clear(); // A write may have been taken just before cancelling
+        assertNull(link.mWrites.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void countsPeriodsSkippedWhileBehind() throws InterruptedException {
+        RecordingLink link = new RecordingLink();
+        link.mWriteTime = 100;
+        mScheduler = new BluetoothSerialScheduler(link);
+        BluetoothSerialScheduler.Command command = mScheduler.schedule("S", 10);
+        mScheduler.onStreamOpened();
+
+        take(link);
+        take(link);
+        assertTrue("Periods passed during a slow write must be skipped", command.getMissedCount() >= 5);
+    }
+
+}
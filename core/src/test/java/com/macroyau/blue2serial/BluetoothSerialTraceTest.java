@@ -0,0 +1,75 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluetoothSerialTraceTest {
+
+    private static String dump(BluetoothSerialTrace trace) throws IOException {
+        StringWriter writer = new StringWriter();
+        trace.dump(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void keepsMostRecentEventsOnceFull() throws IOException {
+        BluetoothSerialTrace trace = new BluetoothSerialTrace(3);
+        for (int i = 1; i <= 5; i++)
+            trace.record(BluetoothSerialTrace.EVENT_READ, i);
+        assertEquals(5, trace.getCount());
+
+        String json = dump(trace);
+        assertFalse(json.contains("\"bytes\":1}"));
+        assertFalse(json.contains("\"bytes\":2}"));
+        int third = json.indexOf("\"bytes\":3}");
+        int fourth = json.indexOf("\"bytes\":4}");
+        int fifth = json.indexOf("\"bytes\":5}");
+        assertTrue("Events must be dumped from oldest to newest", third >= 0 && third < fourth && fourth < fifth);
+    }
+
+    @Test
+    public void dumpsChromeTraceEvents() throws IOException {
+        BluetoothSerialTrace trace = new BluetoothSerialTrace(8);
+        trace.record(BluetoothSerialTrace.EVENT_CONNECT_BEGIN, 0);
+        trace.record(BluetoothSerialTrace.EVENT_CONNECT_END, 1);
+        trace.record(BluetoothSerialTrace.EVENT_STATE, 3);
+        trace.record(BluetoothSerialTrace.EVENT_WRITE_QUEUE_DEPTH, 7);
+        trace.record(BluetoothSerialTrace.EVENT_DISPATCH_LAG, 2500000);
+
+        String json = dump(trace);
+        long tid = Thread.currentThread().getId();
+        assertTrue(json.startsWith("{\"traceEvents\":[{\"name\":\"connect\",\"ph\":\"B\",\"ts\":0.000,\"pid\":1,\"tid\":" + tid + "},"));
+        assertTrue(json.contains("\"ph\":\"E\""));
+        assertTrue(json.contains("\"args\":{\"success\":true}"));
+        assertTrue(json.contains("\"args\":{\"state\":3}"));
+        assertTrue(json.contains("{\"name\":\"write queue\",\"ph\":\"C\""));
+        assertTrue(json.contains("\"args\":{\"depth\":7}"));
+        assertTrue(json.contains("\"args\":{\"ms\":2.500}"));
+        assertTrue(json.endsWith("],\"displayTimeUnit\":\"ms\"}"));
+    }
+
+    @Test
+    public void dumpsNoEventsAfterClear() throws IOException {
+        BluetoothSerialTrace trace = new BluetoothSerialTrace(2);
+        trace.record(BluetoothSerialTrace.EVENT_WRITE, 10);
+        trace.record(BluetoothSerialTrace.EVENT_WRITE, 20);
+        trace.record(BluetoothSerialTrace.EVENT_WRITE, 30);
+        trace.clear();
+
+        assertEquals(0, trace.getCount());
+        assertEquals("{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}", dump(trace));
+
+        // Recording restarts at the beginning of the buffer
+        trace.record(BluetoothSerialTrace.EVENT_WRITE, 40);
+        String json = dump(trace);
+        assertTrue(json.contains("\"bytes\":40}"));
+        assertFalse(json.contains("\"bytes\":30}"));
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedDispatcherTest {
+
+    /**
+     * Executor holding the tasks until they are run by the test.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null)
+                task.run();
+        }
+
+    }
+
+    private static Runnable record(final List<Integer> events, final int event) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(event);
+            }
+        };
+    }
+
+    @Test
+    public void dropsDroppableEventsWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        BoundedDispatcher dispatcher = new BoundedDispatcher(executor, 2);
+        List<Integer> events = new ArrayList<>();
+
+        assertTrue(dispatcher.dispatch(record(events, 1)));
+        assertTrue(dispatcher.dispatch(record(events, 2)));
+        assertFalse(dispatcher.dispatch(record(events, 3)));
+        assertEquals(1, dispatcher.getDroppedCount());
+        assertEquals(1, executor.mTasks.size()); // One drain for the whole queue
+
+        executor.runAll();
+        assertEquals(Arrays.asList(1, 2), events);
+        assertEquals(2, dispatcher.getDeliveredCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getMaxQueueDepth());
+
+        // The queue accepts droppable events again once drained
+        assertTrue(dispatcher.dispatch(record(events, 4)));
+        executor.runAll();
+        assertEquals(Arrays.asList(1, 2, 4), events);
+    }
+
+    @Test
+    public void queuesEventsWhichMustNotBeDroppedBeyondCapacity() {
+        ManualExecutor executor = new ManualExecutor();
+        BoundedDispatcher dispatcher = new BoundedDispatcher(executor, 1);
+        List<Integer> events = new ArrayList<>();
+
+        dispatcher.dispatch(record(events, 1));
+        dispatcher.dispatchAlways(record(events, 2));
+        assertFalse(dispatcher.dispatch(record(events, 3)));
+        dispatcher.dispatchAlways(record(events, 4));
+        assertEquals(3, dispatcher.getQueueDepth());
+
+        executor.runAll();
+        assertEquals(Arrays.asList(1, 2, 4), events);
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void countsConsumerErrorsAndKeepsDelivering() {
+        ManualExecutor executor = new ManualExecutor();
+        BoundedDispatcher dispatcher = new BoundedDispatcher(executor, 4);
+        List<Integer> events = new ArrayList<>();
+
+        dispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Consumer failed");
+            }
+        });
+        dispatcher.dispatch(record(events, 1));
+
+        executor.runAll();
+        assertEquals(Arrays.asList(1), events);
+        assertEquals(1, dispatcher.getErrorCount());
+        assertEquals(1, dispatcher.getDeliveredCount());
+    }
+
+    @Test
+    public void stopsAfterShutdown() {
+        ManualExecutor executor = new ManualExecutor();
+        BoundedDispatcher dispatcher = new BoundedDispatcher(executor, 4);
+        List<Integer> events = new ArrayList<>();
+
+        dispatcher.dispatch(record(events, 1));
+        dispatcher.shutdown();
+        assertFalse(dispatcher.dispatch(record(events, 2)));
+        dispatcher.dispatchAlways(record(events, 3));
+
+        executor.runAll();
+        assertTrue(events.isEmpty());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void shutsDownWhenExecutorRejects() {
+        BoundedDispatcher dispatcher = new BoundedDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException();
+            }
+        }, 4);
+        List<Integer> events = new ArrayList<>();
+
+        assertFalse(dispatcher.dispatch(record(events, 1)));
+        assertFalse(dispatcher.dispatch(record(events, 2)));
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+}
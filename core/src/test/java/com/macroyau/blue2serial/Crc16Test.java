@@ -0,0 +1,27 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Crc16Test {
+
+    @Test
+    public void computesCheckValue() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0x29B1, Crc16.compute(data, 0, data.length));
+    }
+
+    @Test
+    public void appendedCrcIsChecked() {
+        byte[] frame = { 0x7F, 1, 2, 3, 4, 0, 0 };
+        Crc16.append(frame, 1, 4);
+        assertTrue(Crc16.check(frame, 1, 4));
+
+        frame[2] ^= 0x10;
+        assertFalse(Crc16.check(frame, 1, 4));
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PatternAutomatonTest {
+
+    private static List<String> scan(PatternAutomaton automaton, String[] patterns, String text) {
+        List<String> found = new ArrayList<>();
+        int state = automaton.getInitialState();
+        for (byte b : text.getBytes()) {
+            state = automaton.next(state, b);
+            for (int p : automaton.getMatches(state))
+                found.add(patterns[p]);
+        }
+        return found;
+    }
+
+    @Test
+    public void findsOverlappingPatterns() {
+        String[] patterns = { "he", "she", "his", "hers" };
+        PatternAutomaton automaton = new PatternAutomaton(toBytes(patterns));
+
+        // Matches ending at the same byte are reported in no particular order
+        List<String> found = scan(automaton, patterns, "ushers");
+        Collections.sort(found);
+        assertEquals(Arrays.asList("he", "hers", "she"), found);
+    }
+
+    @Test
+    public void keepsStateAcrossReads() {
+        String[] patterns = { "OK\r\n", "ERROR" };
+        PatternAutomaton automaton = new PatternAutomaton(toBytes(patterns));
+
+        // The state carries a partial match from one read to the next
+        int state = automaton.getInitialState();
+        for (byte b : "AT+X\r\nO".getBytes())
+            state = automaton.next(state, b);
+        assertEquals(0, automaton.getMatches(state).length);
+        for (byte b : "K\r".getBytes())
+            state = automaton.next(state, b);
+        assertEquals(0, automaton.getMatches(state).length);
+        state = automaton.next(state, (byte) '\n');
+        assertEquals(1, automaton.getMatches(state).length);
+        assertEquals(0, automaton.getMatches(state)[0]);
+    }
+
+    @Test
+    public void matchesBinaryPatterns() {
+        byte[][] patterns = { { (byte) 0xFF, 0x00 }, { 0x00, (byte) 0xFF } };
+        PatternAutomaton automaton = new PatternAutomaton(patterns);
+
+        int matches = 0;
+        int state = automaton.getInitialState();
+        for (byte b : new byte[] { (byte) 0xFF, 0x00, (byte) 0xFF, 0x00 }) {
+            state = automaton.next(state, b);
+            matches += automaton.getMatches(state).length;
+        }
+        assertEquals(3, matches);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPattern() {
+        new PatternAutomaton(new byte[][] { new byte[0] });
+    }
+
+    private static byte[][] toBytes(String[] patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++)
+            bytes[i] = patterns[i].getBytes();
+        return bytes;
+    }
+
+}
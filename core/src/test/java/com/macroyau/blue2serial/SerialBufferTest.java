@@ -0,0 +1,80 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SerialBufferTest {
+
+    private static byte[] contents(SerialBuffer buffer) {
+        return Arrays.copyOfRange(buffer.getArray(), buffer.getOffset(), buffer.getOffset() + buffer.getLength());
+    }
+
+    @Test
+    public void copiesWithoutModifyingTheCallersArray() {
+        byte[] data = "abc".getBytes();
+        SerialBuffer buffer = new SerialBuffer();
+        buffer.copyFrom(data);
+        buffer.getArray()[buffer.getOffset()] = 'x';
+        assertArrayEquals("abc".getBytes(), data);
+        assertArrayEquals("xbc".getBytes(), contents(buffer));
+    }
+
+    @Test
+    public void swapsBetweenTwoOwnedArrays() {
+        SerialBuffer buffer = new SerialBuffer();
+        buffer.copyFrom("ab".getBytes());
+        byte[] first = buffer.getArray();
+
+        // Escaping into the spare array and swapping alternates between the two arrays without allocating
+        byte[] spare = buffer.getSpare(4);
+        assertNotSame(first, spare);
+        spare[0] = 'a';
+        spare[1] = '\\';
+        spare[2] = 'b';
+        buffer.swap(3);
+        assertSame(spare, buffer.getArray());
+        assertArrayEquals("a\\b".getBytes(), contents(buffer));
+        assertSame(first, buffer.getSpare(4));
+    }
+
+    @Test
+    public void movesWrappedBytesIntoOwnedArrayToGrow() {
+        byte[] read = "--payload--".getBytes();
+        SerialBuffer buffer = new SerialBuffer();
+        buffer.wrap(read, 2, 7);
+
+        byte[] array = buffer.ensureCapacity(9);
+        assertNotSame(read, array);
+        array[buffer.getOffset() + 7] = '!';
+        array[buffer.getOffset() + 8] = '!';
+        buffer.setRange(buffer.getOffset(), 9);
+        assertArrayEquals("payload!!".getBytes(), contents(buffer));
+        assertArrayEquals("--payload--".getBytes(), read);
+
+        // An owned array with room is kept
+        assertSame(array, buffer.ensureCapacity(9));
+    }
+
+    @Test
+    public void growsSpareArray() {
+        SerialBuffer buffer = new SerialBuffer();
+        buffer.copyFrom(new byte[10]);
+        assertTrue(buffer.getSpare(1000).length >= 1000);
+        assertEquals(10, buffer.getLength());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsRangeBeyondArray() {
+        SerialBuffer buffer = new SerialBuffer();
+        buffer.wrap(new byte[4], 0, 4);
+        buffer.setRange(2, 3);
+    }
+
+}
@@ -0,0 +1,388 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialConnectionTest {
+
+    /**
+     * Transport recording each write to the output stream, taking the specified time per write. Reads return the input set, if any, and then the end of stream.
+     */
+    private static class RecordingTransport implements SerialTransport {
+
+        final List<byte[]> mWrites = new ArrayList<>();
+        final CountDownLatch mFirstWrite = new CountDownLatch(1);
+        byte[] mInput = new byte[0];
+        private final long mWriteTime;
+
+        RecordingTransport(long writeTime) {
+            mWriteTime = writeTime;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(mInput);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    synchronized (mWrites) {
+                        mWrites.add(Arrays.copyOfRange(data, offset, offset + length));
+                    }
+                    mFirstWrite.countDown();
+                    try {
+                        Thread.sleep(mWriteTime);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+
+        byte[] getWritten() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            synchronized (mWrites) {
+                for (byte[] w : mWrites)
+                    out.write(w, 0, w.length);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+    /**
+     * Transport holding the first write until released, and interrupting the write of the urgent bytes by the specified thread right after they are written.
+     */
+    private static class InterruptingTransport extends RecordingTransport {
+
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile Thread mInterruptedThread;
+
+        InterruptingTransport() {
+            super(0);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            final OutputStream out = super.getOutputStream();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    boolean first = mWrites.isEmpty();
+                    out.write(data, offset, length);
+                    if (first) {
+                        try {
+                            mRelease.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                    if (data[offset] == 'u' && Thread.currentThread() == mInterruptedThread) {
+                        InterruptedIOException e = new InterruptedIOException("Interrupted");
+                        e.bytesTransferred = length;
+                        throw e;
+                    }
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Interceptor appending its tag to the written bytes and stripping it from the read bytes, logging its calls.
+     */
+    private static class TaggingInterceptor implements SerialInterceptor {
+
+        private final byte mTag;
+        private final List<String> mLog;
+
+        TaggingInterceptor(char tag, List<String> log) {
+            mTag = (byte) tag;
+            mLog = log;
+        }
+
+        @Override
+        public void onOpened() {
+        }
+
+        @Override
+        public void onWrite(SerialBuffer buffer) {
+            mLog.add("write " + (char) mTag);
+            byte[] array = buffer.ensureCapacity(buffer.getLength() + 1);
+            array[buffer.getOffset() + buffer.getLength()] = mTag;
+            buffer.setRange(buffer.getOffset(), buffer.getLength() + 1);
+        }
+
+        @Override
+        public void onRead(SerialBuffer buffer) {
+            mLog.add("read " + (char) mTag);
+            int last = buffer.getOffset() + buffer.getLength() - 1;
+            if (buffer.getLength() > 0 && buffer.getArray()[last] == mTag)
+                buffer.setRange(buffer.getOffset(), buffer.getLength() - 1);
+        }
+
+    }
+
+    private static SerialConnection newConnection(SerialTransport transport) throws IOException {
+        return new SerialConnection(transport, new ArrayList<BluetoothSerialStreamListener>(), new SerialConnection.Callback() {
+            @Override
+            public void onRead(byte[] buffer, int offset, int length, long timestamp) {
+            }
+
+            @Override
+            public void onClosed(SerialConnection connection) {
+            }
+        });
+    }
+
+    private static byte[] fill(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    public void runsInterceptorsInPipelineOrder() throws IOException {
+        RecordingTransport transport = new RecordingTransport(0);
+        transport.mInput = "y12".getBytes();
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        SerialConnection connection = new SerialConnection(transport, new ArrayList<BluetoothSerialStreamListener>(), new SerialConnection.Callback() {
+            @Override
+            public void onRead(byte[] buffer, int offset, int length, long timestamp) {
+                read.write(buffer, offset, length);
+            }
+
+            @Override
+            public void onClosed(SerialConnection connection) {
+            }
+        });
+        List<String> log = new ArrayList<>();
+        connection.setInterceptors(Arrays.<SerialInterceptor>asList(new TaggingInterceptor('1', log), new TaggingInterceptor('2', log)));
+
+        // Writes pass from the application side to the wire side, and reads the other way
+        byte[] data = "x".getBytes();
+        connection.write(data);
+        assertArrayEquals("x12".getBytes(), transport.getWritten());
+        assertArrayEquals("The caller's array must not be modified", "x".getBytes(), data);
+
+        connection.run();
+        assertArrayEquals("y".getBytes(), read.toByteArray());
+        assertEquals(Arrays.asList("write 1", "write 2", "read 2", "read 1"), log);
+    }
+
+    @Test
+    public void writesInChunks() throws IOException {
+        RecordingTransport transport = new RecordingTransport(0);
+        SerialConnection connection = newConnection(transport);
+        connection.setChunkSize(100);
+
+        connection.write(fill(250, 1));
+        assertEquals(3, transport.mWrites.size());
+        assertEquals(50, transport.mWrites.get(2).length);
+    }
+
+    @Test
+    public void urgentWriteOvertakesBulkWrite() throws Exception {
+        final RecordingTransport transport = new RecordingTransport(5);
+        final SerialConnection connection = newConnection(transport);
+        connection.setChunkSize(16);
+
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.write(fill(1600, 'b'), SerialConnection.PRIORITY_BULK);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        bulk.start();
+        assertTrue(transport.mFirstWrite.await(1, TimeUnit.SECONDS));
+        connection.write(fill(4, 'u'), SerialConnection.PRIORITY_URGENT);
+        bulk.join();
+
+        // The urgent bytes are written as a whole chunk between the bulk chunks, long before the bulk write ends
+        byte[] written = transport.getWritten();
+        assertEquals(1604, written.length);
+        int index = new String(written, "ISO-8859-1").indexOf("uuuu");
+        assertTrue("Urgent write at " + index, index > 0 && index < 800 && index % 16 == 0);
+    }
+
+    @Test
+    public void bulkWritesAreNotInterleaved() throws Exception {
+        final RecordingTransport transport = new RecordingTransport(1);
+        final SerialConnection connection = newConnection(transport);
+        connection.setChunkSize(8);
+
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            final int value = 'a' + i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        connection.write(fill(64, value));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread t : writers)
+            t.join();
+
+        // Each bulk write is written contiguously
+        byte[] written = transport.getWritten();
+        assertEquals(256, written.length);
+        for (int i = 0; i < written.length; i += 64)
+            assertArrayEquals(fill(64, written[i]), Arrays.copyOfRange(written, i, i + 64));
+    }
+
+    @Test
+    public void interruptAfterLastChunkOfAnotherRequestCompletesIt() throws Exception {
+        // Which waiting thread takes the urgent chunk is up to the scheduler, so repeat until the bulk thread does
+        boolean covered = false;
+        for (int i = 0; i < 50 && !covered; i++)
+            covered = runInterruptOnChunkBoundary();
+        assertTrue("The bulk thread never wrote the urgent chunk", covered);
+    }
+
+    /**
+     * The bulk thread writes the whole urgent request as its next chunk and is interrupted right after it.
+     *
+     * @return true if the bulk thread wrote the urgent chunk
+     */
+    private static boolean runInterruptOnChunkBoundary() throws Exception {
+        InterruptingTransport transport = new InterruptingTransport();
+        final SerialConnection connection = newConnection(transport);
+        connection.setChunkSize(16);
+
+        final IOException[] bulkError = new IOException[1];
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.write(fill(32, 'b'), SerialConnection.PRIORITY_BULK);
+                } catch (IOException e) {
+                    bulkError[0] = e;
+                }
+            }
+        };
+        transport.mInterruptedThread = bulk;
+        bulk.start();
+        assertTrue(transport.mFirstWrite.await(1, TimeUnit.SECONDS));
+
+        final Throwable[] urgentError = new Throwable[1];
+        Thread urgent = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.write(fill(16, 'u'), SerialConnection.PRIORITY_URGENT);
+                } catch (Throwable t) {
+                    urgentError[0] = t;
+                }
+            }
+        };
+        urgent.start();
+        Thread.sleep(20);
+        transport.mRelease.countDown();
+        bulk.join(1000);
+        urgent.join(1000);
+        assertFalse(bulk.isAlive() || urgent.isAlive());
+
+        // The urgent request completes in either case, and only the interrupted bulk request stops
+        assertEquals(null, urgentError[0]);
+        String written = new String(transport.getWritten(), "ISO-8859-1");
+        String expected = new String(fill(16, 'b')) + new String(fill(16, 'u'));
+        if (bulkError[0] == null) {
+            assertEquals(expected + new String(fill(16, 'b')), written);
+            return false;
+        }
+        assertTrue(bulkError[0] instanceof InterruptedIOException);
+        assertEquals(expected, written);
+        return true;
+    }
+
+    @Test
+    public void interruptedWriteFailsOnlyItsRequest() throws Exception {
+        final RecordingTransport transport = new RecordingTransport(0);
+        final SerialConnection connection = newConnection(transport);
+        connection.setChunkSize(64);
+        connection.setPacing(100, 8, false);
+
+        final IOException[] errors = new IOException[2];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.write(fill(64, 'a'));
+                } catch (IOException e) {
+                    errors[0] = e;
+                }
+            }
+        };
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.write(fill(32, 'b'));
+                } catch (IOException e) {
+                    errors[1] = e;
+                }
+            }
+        };
+        first.start();
+        assertTrue(transport.mFirstWrite.await(1, TimeUnit.SECONDS));
+        second.start();
+        Thread.sleep(50);
+        first.interrupt();
+        first.join();
+        second.join();
+
+        // The interrupted request stops between paced sub-chunks, and the queued request is still written in full
+        assertTrue(errors[0] instanceof InterruptedIOException);
+        assertEquals(null, errors[1]);
+        String written = new String(transport.getWritten(), "ISO-8859-1");
+        int index = written.indexOf('b');
+        assertEquals(written.length() - 32, index);
+        assertEquals(((InterruptedIOException) errors[0]).bytesTransferred, index);
+        assertTrue(index > 0 && index < 64 && index % 8 == 0);
+        assertFalse(written.substring(index).contains("a"));
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SerialInputStreamTest {
+
+    /**
+     * Link which is connected or not as set, keeping the stream listener registered.
+     */
+    private static class StateLink implements SerialLink {
+
+        final boolean mConnected;
+        BluetoothSerialStreamListener mListener;
+
+        StateLink(boolean connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        public void write(byte[] data) {
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) throws IOException {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+            mListener = null;
+        }
+
+        @Override
+        public void dropConnection() {
+        }
+
+    }
+
+    @Test
+    public void readsFromLinkConnectedBeforeOpening() throws Exception {
+        final StateLink link = new StateLink(true);
+        SerialInputStream in = new SerialInputStream(link);
+
+        // A read waits for the data rather than reporting the end of stream
+        Thread feeder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                byte[] data = { 'a', 'b' };
+                link.mListener.onStreamRead(data, 0, data.length, 0);
+            }
+        };
+        feeder.start();
+        assertEquals('a', in.read());
+        assertEquals('b', in.read());
+        feeder.join();
+    }
+
+    @Test
+    public void endsWhenConnectionIsClosed() throws IOException {
+        StateLink link = new StateLink(false);
+        SerialInputStream in = new SerialInputStream(link);
+        assertEquals(-1, in.read());
+
+        link.mListener.onStreamOpened();
+        byte[] data = { 'x' };
+        link.mListener.onStreamRead(data, 0, data.length, 0);
+        link.mListener.onStreamClosed();
+
+        // The remaining bytes are read before the end of stream
+        assertEquals('x', in.read());
+        assertEquals(-1, in.read());
+    }
+
+}
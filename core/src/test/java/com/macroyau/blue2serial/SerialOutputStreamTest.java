@@ -0,0 +1,79 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SerialOutputStreamTest {
+
+    /**
+     * Link collecting the bytes written while connected.
+     */
+    private static class CollectingLink implements SerialLink {
+
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        boolean mConnected = true;
+
+        @Override
+        public void write(byte[] data) {
+            throw new AssertionError("Writes must wait for the bytes to be written");
+        }
+
+        @Override
+        public void writeAndWait(byte[] data) throws IOException {
+            if (!mConnected)
+                throw new IOException("Not connected!");
+            mWritten.write(data, 0, data.length);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public void addStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        }
+
+        @Override
+        public void dropConnection() {
+        }
+
+    }
+
+    @Test
+    public void writesBufferedBytesOnFlush() throws IOException {
+        CollectingLink link = new CollectingLink();
+        SerialOutputStream out = new SerialOutputStream(link, 4);
+        out.write('a');
+        out.write("bcdef".getBytes(), 0, 3);
+        assertEquals(0, link.mWritten.size());
+
+        out.flush();
+        assertArrayEquals("abcd".getBytes(), link.mWritten.toByteArray());
+    }
+
+    @Test
+    public void throwsWhenNotConnected() throws IOException {
+        CollectingLink link = new CollectingLink();
+        link.mConnected = false;
+        SerialOutputStream out = new SerialOutputStream(link);
+        out.write("lost".getBytes());
+        try {
+            out.flush();
+            fail("Bytes must not be lost silently");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.macroyau.blue2serial;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamCompressionTest {
+
+    private static final byte[] MARKER_OFFER = { 0x1B, 'B', '2', 'Z', '?' };
+
+    /**
+     * One side of a connection, collecting the raw bytes it writes and the bytes it decodes. The decoded bytes may be scrambled in place first, as an interceptor does.
+     */
+    private static class Peer implements StreamCompression.RawWriter, StreamCompression.DecodedReader {
+
+        final ByteArrayOutputStream mWire = new ByteArrayOutputStream();
+        final ByteArrayOutputStream mDecoded = new ByteArrayOutputStream();
+        final StreamCompression mCompression = new StreamCompression(this, 1000, 4096, Deflater.BEST_SPEED);
+        byte mScramble;
+        volatile Thread mLastWriter;
+
+        @Override
+        public void writeRaw(byte[] data, int offset, int length) {
+            mLastWriter = Thread.currentThread();
+            mWire.write(data, offset, length);
+        }
+
+        @Override
+        public void onDecoded(byte[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++)
+                buffer[i] ^= mScramble;
+            mDecoded.write(buffer, offset, length);
+        }
+
+        void read(byte[] data) throws IOException {
+            mCompression.read(data, 0, data.length, this);
+        }
+
+        /**
+         * Deliver the bytes written so far to the other side, in reads of the specified size.
+         */
+        void sendTo(Peer other, int readSize) throws Exception {
+            mCompression.awaitQueuedWrites();
+            byte[] data = mWire.toByteArray();
+            mWire.reset();
+            for (int i = 0; i < data.length; i += readSize)
+                other.read(Arrays.copyOfRange(data, i, Math.min(data.length, i + readSize)));
+        }
+
+    }
+
+    private Peer mA, mB;
+
+    @Before
+    public void setUp() {
+        mA = new Peer();
+        mB = new Peer();
+    }
+
+    @After
+    public void tearDown() {
+        mA.mCompression.close();
+        mA.mCompression.endInbound();
+        mB.mCompression.close();
+        mB.mCompression.endInbound();
+    }
+
+    private void negotiate() throws Exception {
+        mA.mCompression.offer();
+        mA.sendTo(mB, 64); // Offer
+        mB.sendTo(mA, 64); // Start from B
+        mA.sendTo(mB, 64); // Start from A
+    }
+
+    @Test
+    public void negotiatesCompression() throws Exception {
+        assertFalse(mA.mCompression.isActive());
+        negotiate();
+        assertTrue(mA.mCompression.isActive());
+        assertTrue(mB.mCompression.isActive());
+        assertTrue("Markers must not be delivered", mA.mDecoded.size() == 0 && mB.mDecoded.size() == 0);
+    }
+
+    @Test
+    public void roundTripsCompressibleData() throws Exception {
+        negotiate();
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            text.append("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n");
+        byte[] data = text.toString().getBytes();
+        mA.mCompression.write(data, 0, data.length);
+        mA.mCompression.flush();
+
+        assertTrue("Data must be compressed", mA.mWire.size() < data.length / 4);
+        mA.sendTo(mB, 7); // Blocks split across many reads
+        assertArrayEquals(data, mB.mDecoded.toByteArray());
+    }
+
+    @Test
+    public void roundTripsIncompressibleData() throws Exception {
+        negotiate();
+
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        mA.mCompression.write(data, 0, data.length);
+        mA.mCompression.flush();
+
+        mA.sendTo(mB, 1000);
+        assertArrayEquals(data, mB.mDecoded.toByteArray());
+    }
+
+    @Test
+    public void passesThroughUncompressedPeer() throws Exception {
+        // B never offers nor answers, so A keeps writing raw bytes
+        mA.mCompression.offer();
+        mA.mCompression.awaitQueuedWrites();
+        mA.mWire.reset();
+
+        byte[] data = "plain text".getBytes();
+        mA.mCompression.write(data, 0, data.length);
+        assertArrayEquals(data, mA.mWire.toByteArray());
+    }
+
+    @Test
+    public void deliversMarkerSplitAcrossReads() throws Exception {
+        // A marker is recognised although it arrives in pieces
+        mB.read(concat("ab".getBytes(), Arrays.copyOfRange(MARKER_OFFER, 0, 2)));
+        mB.read(concat(Arrays.copyOfRange(MARKER_OFFER, 2, MARKER_OFFER.length), "cd".getBytes()));
+        mB.mCompression.awaitQueuedWrites();
+        assertArrayEquals("abcd".getBytes(), mB.mDecoded.toByteArray());
+        assertTrue("The offer must be answered", mB.mWire.size() > 0);
+    }
+
+    @Test
+    public void answersOfferOffTheReadingThread() throws Exception {
+        // The reading thread may be needed to resume a paused write, so it must never write itself
+        mB.read(MARKER_OFFER);
+        mB.mCompression.awaitQueuedWrites();
+        assertTrue("The offer must be answered", mB.mWire.size() > 0);
+        assertTrue(mB.mLastWriter != null && mB.mLastWriter != Thread.currentThread());
+    }
+
+    @Test
+    public void deliversHeldBytesOfBrokenMarker() throws Exception {
+        // A partial marker held back at the end of a read is delivered once it turns out not to be a marker
+        byte[] first = { 'x', 0x1B, 'B', '2' };
+        byte[] second = { 'Z', 'y' };
+        mB.read(first);
+        mB.read(second);
+        mB.mCompression.awaitQueuedWrites();
+        assertArrayEquals(concat(first, second), mB.mDecoded.toByteArray());
+        assertTrue("No marker must be answered", mB.mWire.size() == 0);
+
+        byte[] third = { 0x1B, 'B' };
+        byte[] fourth = { 'q' };
+        mB.read(third);
+        mB.read(fourth);
+        assertArrayEquals(concat(concat(first, second), concat(third, fourth)), mB.mDecoded.toByteArray());
+    }
+
+    @Test
+    public void keepsMarkerIntactWhenHeldBytesAreTransformed() throws Exception {
+        // The held bytes of a broken marker are scrambled in place by the reader
+        mB.mScramble = 0x55;
+        mB.read(new byte[] { 'x', 0x1B, 'B', '2' });
+        mB.read(new byte[] { 'y' });
+        assertArrayEquals(scramble(new byte[] { 'x', 0x1B, 'B', '2', 'y' }, 0x55), mB.mDecoded.toByteArray());
+
+        // A marker split across reads is still recognised afterwards, by this connection and by a new one
+        mB.mScramble = 0;
+        mB.read(Arrays.copyOfRange(MARKER_OFFER, 0, 3));
+        mB.read(Arrays.copyOfRange(MARKER_OFFER, 3, MARKER_OFFER.length));
+        mB.mCompression.awaitQueuedWrites();
+        assertTrue("The offer must be answered", mB.mWire.size() > 0);
+
+        Peer c = new Peer();
+        try {
+            c.read(MARKER_OFFER);
+            c.mCompression.awaitQueuedWrites();
+            assertTrue("The offer must be answered", c.mWire.size() > 0);
+        } finally {
+            c.mCompression.close();
+            c.mCompression.endInbound();
+        }
+    }
+
+    private static byte[] scramble(byte[] data, int key) {
+        for (int i = 0; i < data.length; i++)
+            data[i] ^= key;
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+}
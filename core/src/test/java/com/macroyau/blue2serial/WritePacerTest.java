@@ -0,0 +1,147 @@
+package com.macroyau.blue2serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WritePacerTest {
+
+    /**
+     * Stream recording the size of each write.
+     */
+    private static class ChunkStream extends ByteArrayOutputStream {
+
+        final List<Integer> mChunks = new ArrayList<>();
+        final CountDownLatch mFirstWrite = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            mChunks.add(len);
+            mFirstWrite.countDown();
+        }
+
+    }
+
+    /**
+     * Write on a separate thread, keeping the exception thrown if any.
+     */
+    private static Thread startWrite(final WritePacer pacer, final ChunkStream out, final byte[] data, final AtomicReference<IOException> error) {
+        Thread thread = new Thread("WritePacerTest") {
+            @Override
+            public void run() {
+                try {
+                    pacer.write(out, data, 0, data.length);
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void splitsWritesIntoBurstSizedChunks() throws IOException {
+        ChunkStream out = new ChunkStream();
+        new WritePacer(1e9, 4, false).write(out, "0123456789".getBytes(), 0, 10);
+        assertEquals(Arrays.asList(4, 4, 2), out.mChunks);
+        assertArrayEquals("0123456789".getBytes(), out.toByteArray());
+
+        out = new ChunkStream();
+        new WritePacer(0, 4, false).write(out, new byte[100], 0, 100);
+        assertEquals("Unpaced writes use fixed-size chunks", Arrays.asList(64, 36), out.mChunks);
+    }
+
+    @Test
+    public void metersWritesAtRate() throws IOException {
+        WritePacer pacer = new WritePacer(1000, 10, false);
+        long start = System.nanoTime();
+        pacer.write(new ChunkStream(), new byte[60], 0, 60);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The first 10 bytes are the initial burst, and the other 50 take 50 ms at 1000 bytes/s
+        assertTrue("60 bytes took " + elapsed + " ms", elapsed >= 45);
+    }
+
+    @Test
+    public void stripsFlowControlBytes() {
+        WritePacer pacer = new WritePacer(0, 0, true);
+        byte[] buffer = { '-', 'a', WritePacer.XOFF, 'b', WritePacer.XON, 'c', WritePacer.XOFF };
+        assertEquals(3, pacer.filterInbound(buffer, 1, 6));
+        assertArrayEquals("abc".getBytes(), Arrays.copyOfRange(buffer, 1, 4));
+        assertEquals('-', buffer[0]);
+        assertTrue(pacer.isPaused());
+
+        WritePacer unpaced = new WritePacer(0, 0, false);
+        byte[] raw = { 'a', WritePacer.XOFF };
+        assertEquals(2, unpaced.filterInbound(raw, 0, 2));
+        assertFalse(unpaced.isPaused());
+    }
+
+    @Test
+    public void holdsWritesUntilXon() throws InterruptedException {
+        WritePacer pacer = new WritePacer(0, 0, true);
+        byte[] xoff = { WritePacer.XOFF };
+        pacer.filterInbound(xoff, 0, 1);
+
+        ChunkStream out = new ChunkStream();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writer = startWrite(pacer, out, "held".getBytes(), error);
+        assertFalse(out.mFirstWrite.await(50, TimeUnit.MILLISECONDS));
+
+        byte[] xon = { WritePacer.XON };
+        pacer.filterInbound(xon, 0, 1);
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertNull(error.get());
+        assertArrayEquals("held".getBytes(), out.toByteArray());
+    }
+
+    @Test
+    public void reportsBytesWrittenBeforeInterrupt() throws InterruptedException {
+        WritePacer pacer = new WritePacer(100, 10, false);
+        ChunkStream out = new ChunkStream();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writer = startWrite(pacer, out, new byte[100], error);
+
+        // The first chunk is the initial burst, and the next one waits 100 ms for tokens
+        assertTrue(out.mFirstWrite.await(1, TimeUnit.SECONDS));
+        writer.interrupt();
+        writer.join(1000);
+        assertTrue(error.get() instanceof InterruptedIOException);
+        assertEquals(out.size(), ((InterruptedIOException) error.get()).bytesTransferred);
+        assertEquals(10, out.size());
+    }
+
+    @Test
+    public void abortsWaitingWritesOnClose() throws InterruptedException {
+        WritePacer pacer = new WritePacer(0, 0, true);
+        byte[] xoff = { WritePacer.XOFF };
+        pacer.filterInbound(xoff, 0, 1);
+
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread writer = startWrite(pacer, new ChunkStream(), "lost".getBytes(), error);
+        Thread.sleep(20);
+        pacer.close();
+        writer.join(1000);
+        assertNotNull(error.get());
+        assertFalse(error.get() instanceof InterruptedIOException);
+    }
+
+}
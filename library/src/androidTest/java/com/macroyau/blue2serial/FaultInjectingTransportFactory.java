@@ -0,0 +1,273 @@
+package com.macroyau.blue2serial;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for RFCOMM sockets simulating a remote device which streams a known byte pattern, for soak testing the connection lifecycle without a radio. Faults are injected at random with configurable probabilities: connect failures, read errors dropping the connection, partial reads, read stalls and slow writes. Each connection streams the bytes 0, 1, 2, ... modulo 256 from its start, so that lost or reordered bytes can be detected.
+ *
+ * <p>Blocking calls wait on the transport rather than sleeping, so closing a transport unblocks them like closing a socket does.</p>
+ *
+ * @author Macro Yau
+ */
+class FaultInjectingTransportFactory implements SPPService.TransportFactory {
+
+    private final Random mRandom;
+
+    private double mConnectFailureRate;
+    private long mConnectDelay;
+    private double mReadErrorRate;
+    private double mPartialReadRate;
+    private double mStallRate;
+    private long mStallTime;
+    private double mSlowWriteRate;
+    private long mSlowWriteTime;
+    private int mChunkSize = 256;
+    private long mReadInterval = 4; // ms
+
+    private final AtomicInteger mOpenTransports = new AtomicInteger();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mReadErrors = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param seed The seed of the faults injected, so that a failing run can be repeated.
+     */
+    FaultInjectingTransportFactory(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Fail connects with the specified probability after the connect delay.
+     *
+     * @param rate The probability of a connect failing.
+     * @param delay The time a connect takes in milliseconds.
+     */
+    void setConnectFaults(double rate, long delay) {
+        mConnectFailureRate = rate;
+        mConnectDelay = delay;
+    }
+
+    /**
+     * Fail reads with the specified probability, dropping the connection.
+     *
+     * @param rate The probability of a read failing.
+     */
+    void setReadErrors(double rate) {
+        mReadErrorRate = rate;
+    }
+
+    /**
+     * Return fewer bytes than available with the specified probability, splitting the data at a random position.
+     *
+     * @param rate The probability of a read being partial.
+     */
+    void setPartialReads(double rate) {
+        mPartialReadRate = rate;
+    }
+
+    /**
+     * Stall reads with the specified probability, as when the remote device goes out of range briefly.
+     *
+     * @param rate The probability of a read stalling.
+     * @param time The duration of a stall in milliseconds.
+     */
+    void setStalls(double rate, long time) {
+        mStallRate = rate;
+        mStallTime = time;
+    }
+
+    /**
+     * Delay writes with the specified probability, as when the remote device applies flow control.
+     *
+     * @param rate The probability of a write being delayed.
+     * @param time The delay in milliseconds.
+     */
+    void setSlowWrites(double rate, long time) {
+        mSlowWriteRate = rate;
+        mSlowWriteTime = time;
+    }
+
+    /**
+     * Set the rate at which the remote device streams data.
+     *
+     * @param chunkSize The number of bytes made available at a time.
+     * @param interval The interval between chunks in milliseconds.
+     */
+    void setStreamRate(int chunkSize, long interval) {
+        mChunkSize = chunkSize;
+        mReadInterval = interval;
+    }
+
+    /**
+     * Get the number of transports created and not yet closed. Transports leak if this keeps growing.
+     *
+     * @return the number of open transports
+     */
+    int getOpenTransports() {
+        return mOpenTransports.get();
+    }
+
+    long getConnects() {
+        return mConnects.get();
+    }
+
+    long getConnectFailures() {
+        return mConnectFailures.get();
+    }
+
+    long getReadErrors() {
+        return mReadErrors.get();
+    }
+
+    long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    private boolean roll(double rate) {
+        if (rate <= 0)
+            return false;
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < rate;
+        }
+    }
+
+    private int nextInt(int bound) {
+        synchronized (mRandom) {
+            return mRandom.nextInt(bound);
+        }
+    }
+
+    @Override
+    public SPPService.ConnectableTransport createTransport(BluetoothDevice device) {
+        mOpenTransports.incrementAndGet();
+        return new Transport();
+    }
+
+    private class Transport implements SPPService.ConnectableTransport {
+
+        private boolean mConnected, mClosed;
+        private int mNextByte;
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return Transport.this.read(buffer, offset, length);
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                Transport.this.write(length);
+            }
+        };
+
+        @Override
+        public synchronized void connect() throws IOException {
+            pause(mConnectDelay);
+            if (roll(mConnectFailureRate)) {
+                mConnectFailures.incrementAndGet();
+                throw new IOException("Injected connect failure");
+            }
+            mConnected = true;
+            mConnects.incrementAndGet();
+        }
+
+        private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            checkConnected();
+            pause(roll(mStallRate) ? mStallTime : mReadInterval);
+            if (roll(mReadErrorRate)) {
+                mReadErrors.incrementAndGet();
+                throw new IOException("Injected read error");
+            }
+
+            int n = Math.min(length, mChunkSize);
+            if (n > 1 && roll(mPartialReadRate))
+                n = 1 + nextInt(n - 1);
+            for (int i = 0; i < n; i++)
+                buffer[offset + i] = (byte) mNextByte++;
+            mBytesRead.addAndGet(n);
+            return n;
+        }
+
+        private synchronized void write(int length) throws IOException {
+            checkConnected();
+            if (roll(mSlowWriteRate))
+                pause(mSlowWriteTime);
+            mBytesWritten.addAndGet(length);
+        }
+
+        /**
+         * Wait for the specified time unless the transport is closed.
+         */
+        private void pause(long time) throws IOException {
+            long deadline = System.currentTimeMillis() + time;
+            long remaining = time;
+            while (!mClosed && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (mClosed)
+                throw new IOException("Transport closed");
+        }
+
+        private void checkConnected() throws IOException {
+            if (mClosed || !mConnected)
+                throw new IOException("Transport not connected");
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mInputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mOutputStream;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                mClosed = true;
+                notifyAll();
+            }
+            mOpenTransports.decrementAndGet();
+        }
+
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.macroyau.blue2serial;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test running the full {@link com.macroyau.blue2serial.BluetoothSerial} stack against a {@link com.macroyau.blue2serial.FaultInjectingTransportFactory} for a long time, so that leaks and stalls in the connect, reconnect and restart paths show up. Auto-connect re-establishes the connection whenever an injected fault drops it.
+ *
+ * <p>After a warm-up, the thread count, the heap usage and the read throughput are sampled periodically, and the test fails if they regress from the warm-up baseline, if a connect attempt takes too long, if a reconnect takes longer than the auto-connect back-offs of its failed attempts allow, if any byte is lost or reordered within a connection, or if transports are left open after stopping. A Bluetooth adapter must be present to create the remote device, but it may be disabled, as no radio traffic takes place. The duration defaults to 5 minutes and can be set in minutes by the {@code soakMinutes} instrumentation argument. The seed of the injected faults is logged and can be set by the {@code soakSeed} argument to repeat a failing run, e.g.:</p>
+ *
+ * <pre>./gradlew :library:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.soakMinutes=480 -Pandroid.testInstrumentationRunnerArguments.soakSeed=1234</pre>
+ *
+ * @author Macro Yau
+ */
+public class SoakTest extends InstrumentationTestCase {
+
+    private static final String TAG = "SoakTest";
+
+    private static final String DEVICE_ADDRESS = "02:00:00:5E:AA:01"; // Locally administered, never a real device
+
+    private static final long DEFAULT_DURATION = 5; // min
+    private static final long WARM_UP = 60000; // ms
+    private static final long SAMPLE_INTERVAL = 10000; // ms
+    private static final long WRITE_INTERVAL = 50; // ms
+    private static final long STOP_TIMEOUT = 5000; // ms
+
+    private static final int MAX_THREAD_GROWTH = 4;
+    private static final long MAX_HEAP_GROWTH = 8 * 1024 * 1024; // bytes
+    private static final double MIN_THROUGHPUT_RATIO = 0.5;
+    private static final long MAX_CONNECT_LATENCY = 5000; // ms, from the start of a connect attempt to being connected
+
+    private BluetoothSerial mSerial;
+    private FaultInjectingTransportFactory mFactory;
+    private final LatencyStats mReconnectLatency = new LatencyStats();
+    private final LatencyStats mConnectLatency = new LatencyStats();
+    private volatile long mLostTime;
+    private volatile long mAttemptTime;
+    private volatile int mFailedAttempts;
+    private volatile int mSlowReconnects;
+    private volatile int mConnections;
+    private final AtomicLong mPatternErrors = new AtomicLong();
+    private volatile boolean mWriting;
+
+    public void testSoak() throws Exception {
+        BluetoothAdapter adapter = BluetoothSerial.getAdapter(getInstrumentation().getTargetContext());
+        assertNotNull("A Bluetooth adapter is required to create the remote device!", adapter);
+
+        String minutes = getArgument("soakMinutes");
+        long duration = TimeUnit.MINUTES.toMillis((minutes != null) ? Long.parseLong(minutes) : DEFAULT_DURATION);
+        assertTrue("The soak must run longer than the warm-up!", duration > WARM_UP + SAMPLE_INTERVAL);
+
+        String seedArgument = getArgument("soakSeed");
+        long seed = (seedArgument != null) ? Long.parseLong(seedArgument) : System.currentTimeMillis();
+        Log.i(TAG, "Injecting faults with seed " + seed + ", set by the soakSeed argument to repeat the run");
+        mFactory = new FaultInjectingTransportFactory(seed);
+        mFactory.setConnectFaults(0.2, 200);
+        mFactory.setReadErrors(0.0005);
+        mFactory.setPartialReads(0.3);
+        mFactory.setStalls(0.002, 2000);
+        mFactory.setSlowWrites(0.05, 100);
+        mFactory.setStreamRate(256, 4);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mSerial = new BluetoothSerial(getInstrumentation().getTargetContext(), mListener);
+                mSerial.setTransportFactory(mFactory);
+                mSerial.setup();
+                mSerial.addStreamListener(mPatternChecker);
+                mSerial.setAutoConnect(true);
+                mSerial.connect(DEVICE_ADDRESS);
+            }
+        });
+
+        mWriting = true;
+        Thread writer = new Thread(mWriter, TAG + "-writer");
+        writer.start();
+
+        long start = System.currentTimeMillis();
+        long baselineBytes = 0, baselineHeap = 0, baselineTime = 0;
+        int baselineThreads = 0;
+        long lastBytes = 0, lastTime = 0, lastHeap = 0;
+        int lastThreads = 0;
+        try {
+            while (System.currentTimeMillis() - start < duration) {
+                Thread.sleep(SAMPLE_INTERVAL);
+
+                lastTime = System.currentTimeMillis() - start;
+                lastBytes = mFactory.getBytesRead();
+                lastThreads = Thread.getAllStackTraces().size();
+                lastHeap = getUsedHeap();
+                Log.i(TAG, String.format("%ds: %d threads, %d kB heap, %d kB read, %d connections, %d connect failures, %d read errors, %d open transports",
+                        lastTime / 1000, lastThreads, lastHeap / 1024, lastBytes / 1024,
+                        mConnections, mFactory.getConnectFailures(), mFactory.getReadErrors(), mFactory.getOpenTransports()));
+
+                if (baselineTime == 0 && lastTime >= WARM_UP) {
+                    baselineTime = lastTime;
+                    baselineBytes = lastBytes;
+                    baselineThreads = lastThreads;
+                    baselineHeap = lastHeap;
+                }
+                assertEquals("Bytes are lost or reordered within a connection!", 0, mPatternErrors.get());
+            }
+        } finally {
+            mWriting = false;
+            writer.join();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mSerial.stop();
+                    mSerial.getDeviceRegistry().forget(DEVICE_ADDRESS);
+                }
+            });
+        }
+
+        double baselineThroughput = (double) baselineBytes / baselineTime;
+        double throughput = (double) (lastBytes - baselineBytes) / (lastTime - baselineTime);
+        Log.i(TAG, String.format("Throughput %.1f kB/s after warm-up, %.1f kB/s since; reconnect latency p50 %d ms, max %d ms; connect latency max %d ms",
+                baselineThroughput * 1000 / 1024, throughput * 1000 / 1024,
+                TimeUnit.NANOSECONDS.toMillis(mReconnectLatency.getPercentile(50)),
+                TimeUnit.NANOSECONDS.toMillis(mReconnectLatency.getMax()),
+                TimeUnit.NANOSECONDS.toMillis(mConnectLatency.getMax())));
+
+        assertTrue("No reconnect took place!", mReconnectLatency.getCount() > 0);
+        assertTrue("A connect attempt took " + TimeUnit.NANOSECONDS.toMillis(mConnectLatency.getMax()) + " ms!",
+                mConnectLatency.getMax() <= TimeUnit.MILLISECONDS.toNanos(MAX_CONNECT_LATENCY));
+        assertEquals("Reconnects took longer than their back-offs allow!", 0, mSlowReconnects);
+        assertTrue("Thread count grew from " + baselineThreads + " to " + lastThreads + "!",
+                lastThreads <= baselineThreads + MAX_THREAD_GROWTH);
+        assertTrue("Heap usage grew from " + baselineHeap / 1024 + " kB to " + lastHeap / 1024 + " kB!",
+                lastHeap <= baselineHeap + MAX_HEAP_GROWTH);
+        assertTrue("Throughput dropped!", throughput >= baselineThroughput * MIN_THROUGHPUT_RATIO);
+        assertTrue("No bytes are written!", mFactory.getBytesWritten() > 0);
+
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        while (mFactory.getOpenTransports() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+        assertEquals("Transports are left open after stopping!", 0, mFactory.getOpenTransports());
+    }
+
+    private String getArgument(String key) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && getInstrumentation() instanceof InstrumentationTestRunner) {
+            Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+            if (arguments != null)
+                return arguments.getString(key);
+        }
+        return null;
+    }
+
+    /**
+     * Get the longest time a reconnect may take after the specified number of failed connect attempts: the auto-connect back-off before each attempt plus the attempt itself.
+     */
+    private static long getReconnectAllowance(int failedAttempts) {
+        long allowance = 0;
+        long delay = BluetoothSerial.AUTO_CONNECT_MIN_DELAY;
+        for (int i = 0; i <= failedAttempts; i++) {
+            allowance += delay + MAX_CONNECT_LATENCY;
+            delay = Math.min(delay * 2, BluetoothSerial.AUTO_CONNECT_MAX_DELAY);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(allowance);
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data = new byte[64];
+            while (mWriting) {
+                mSerial.write(data);
+                try {
+                    Thread.sleep(WRITE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * Checks the pattern streamed by each connection on its I/O thread. The expected byte is kept per thread, as a closing connection may still deliver its last read while the next one opens.
+     */
+    private final BluetoothSerialStreamListener mPatternChecker = new BluetoothSerialStreamListener() {
+
+        private final ThreadLocal<int[]> mExpected = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+        @Override
+        public void onStreamOpened() {
+            mExpected.get()[0] = 0;
+        }
+
+        @Override
+        public void onStreamRead(byte[] buffer, int offset, int length, long timestamp) {
+            int[] expected = mExpected.get();
+            for (int i = offset; i < offset + length; i++) {
+                if (buffer[i] != (byte) expected[0]) {
+                    mPatternErrors.incrementAndGet();
+                    expected[0] = buffer[i];
+                }
+                expected[0]++;
+            }
+        }
+
+        @Override
+        public void onStreamClosed() {
+        }
+
+    };
+
+    /**
+     * Measures on the main thread the latency of each connect attempt, and the reconnect latency from the connection being lost to being connected again, which is checked against the back-offs of the failed attempts in between.
+     */
+    private final BluetoothSerialListener mListener = new BluetoothSerialListener() {
+
+        @Override
+        public void onBluetoothNotSupported() {
+        }
+
+        @Override
+        public void onBluetoothDisabled() {
+        }
+
+        @Override
+        public void onBluetoothDeviceDisconnected() {
+            if (mAttemptTime != 0) {
+                mFailedAttempts++;
+                mAttemptTime = 0;
+            } else if (mLostTime == 0 && mConnections > 0) {
+                mLostTime = System.nanoTime();
+                mFailedAttempts = 0;
+            }
+            if (mConnections == 0)
+                mSerial.connect(DEVICE_ADDRESS); // A failed connect by the app is not retried by auto-connect
+        }
+
+        @Override
+        public void onConnectingBluetoothDevice() {
+            mAttemptTime = System.nanoTime();
+        }
+
+        @Override
+        public void onBluetoothDeviceConnected(String name, String address) {
+            long now = System.nanoTime();
+            if (mAttemptTime != 0) {
+                mConnectLatency.add(now - mAttemptTime);
+                mAttemptTime = 0;
+            }
+            if (mLostTime != 0) {
+                long latency = now - mLostTime;
+                mReconnectLatency.add(latency);
+                if (latency > getReconnectAllowance(mFailedAttempts)) {
+                    Log.w(TAG, "Reconnect took " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms after " + mFailedAttempts + " failed attempts!");
+                    mSlowReconnects++;
+                }
+                mLostTime = 0;
+            }
+            mConnections++;
+        }
+
+        @Override
+        public void onBluetoothSerialRead(String message) {
+        }
+
+        @Override
+        public void onBluetoothSerialWrite(String message) {
+        }
+
+    };
+
+}
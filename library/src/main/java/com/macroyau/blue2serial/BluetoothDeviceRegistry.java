@@ -0,0 +1,269 @@
+package com.macroyau.blue2serial;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent registry of the remote Bluetooth devices this application has connected to, together with their connection statistics. The registry is kept in the application's shared preferences so that it survives restarts.
+ *
+ * @author Macro Yau
+ */
+public class BluetoothDeviceRegistry {
+
+    /**
+     * Prefer the device with the most recent successful connection.
+     */
+    public static final int POLICY_MOST_RECENT = 0;
+
+    /**
+     * Prefer the device with the highest ratio of successful connection attempts.
+     */
+    public static final int POLICY_MOST_RELIABLE = 1;
+
+    private static final String PREFERENCES_NAME = "blue2serial_devices";
+
+    private static final String KEY_NAME = "name:";
+    private static final String KEY_LAST_CONNECTED = "last:";
+    private static final String KEY_CONNECT_COUNT = "connects:";
+    private static final String KEY_FAILURE_COUNT = "failures:";
+
+    /**
+     * A remote Bluetooth device known to the registry.
+     */
+    public static class KnownDevice {
+
+        private final String mAddress;
+        private String mName;
+        private long mLastConnected;
+        private int mConnectCount;
+        private int mFailureCount;
+
+        private KnownDevice(String address) {
+            mAddress = address;
+        }
+
+        /**
+         * Get the MAC address of the device.
+         *
+         * @return the MAC address
+         */
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Get the name of the device when it was last connected.
+         *
+         * @return the name of the device
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Get the time of the last successful connection in milliseconds since epoch.
+         *
+         * @return the time of the last connection, or 0 if never connected
+         */
+        public long getLastConnected() {
+            return mLastConnected;
+        }
+
+        /**
+         * Get the number of successful connections to the device.
+         *
+         * @return the number of successful connections
+         */
+        public int getConnectCount() {
+            return mConnectCount;
+        }
+
+        /**
+         * Get the number of failed connection attempts to the device.
+         *
+         * @return the number of failed connection attempts
+         */
+        public int getFailureCount() {
+            return mFailureCount;
+        }
+
+        /**
+         * Get the ratio of successful connection attempts to the device.
+         *
+         * @return a value between 0 and 1
+         */
+        public float getSuccessRate() {
+            int attempts = mConnectCount + mFailureCount;
+            return (attempts > 0) ? (float) mConnectCount / attempts : 0;
+        }
+
+    }
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, KnownDevice> mDevices = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param context The {@link android.content.Context} to use.
+     */
+    public BluetoothDeviceRegistry(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    private void load() {
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.startsWith(KEY_NAME)) {
+                String address = key.substring(KEY_NAME.length());
+                KnownDevice device = new KnownDevice(address);
+                device.mName = mPreferences.getString(KEY_NAME + address, null);
+                device.mLastConnected = mPreferences.getLong(KEY_LAST_CONNECTED + address, 0);
+                device.mConnectCount = mPreferences.getInt(KEY_CONNECT_COUNT + address, 0);
+                device.mFailureCount = mPreferences.getInt(KEY_FAILURE_COUNT + address, 0);
+                mDevices.put(address, device);
+            }
+        }
+    }
+
+    private void save(KnownDevice device) {
+        String address = device.mAddress;
+        mPreferences.edit()
+                .putString(KEY_NAME + address, (device.mName != null) ? device.mName : "")
+                .putLong(KEY_LAST_CONNECTED + address, device.mLastConnected)
+                .putInt(KEY_CONNECT_COUNT + address, device.mConnectCount)
+                .putInt(KEY_FAILURE_COUNT + address, device.mFailureCount)
+                .apply();
+    }
+
+    private KnownDevice obtain(String address) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    /**
+     * Record a successful connection to a remote Bluetooth device.
+     *
+     * @param address The MAC address of the remote device.
+     * @param name The name of the remote device.
+     */
+    public synchronized void recordConnected(String address, String name) {
+        if (address == null)
+            return;
+
+        KnownDevice device = obtain(address);
+        if (name != null)
+            device.mName = name;
+        device.mLastConnected = System.currentTimeMillis();
+        device.mConnectCount++;
+        save(device);
+    }
+
+    /**
+     * Record a failed connection attempt to a remote Bluetooth device.
+     *
+     * @param address The MAC address of the remote device.
+     */
+    public synchronized void recordFailure(String address) {
+        if (address == null)
+            return;
+
+        KnownDevice device = obtain(address);
+        device.mFailureCount++;
+        save(device);
+    }
+
+    /**
+     * Get a remote Bluetooth device known to the registry.
+     *
+     * @param address The MAC address of the remote device.
+     * @return the known device, or null if the device is not in the registry
+     */
+    public synchronized KnownDevice getDevice(String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * Get all the remote Bluetooth devices known to the registry, most recently connected first.
+     *
+     * @return the known devices
+     */
+    public synchronized List<KnownDevice> getKnownDevices() {
+        List<KnownDevice> devices = new ArrayList<>(mDevices.values());
+        Collections.sort(devices, new Comparator<KnownDevice>() {
+            @Override
+            public int compare(KnownDevice lhs, KnownDevice rhs) {
+                return compareLong(rhs.mLastConnected, lhs.mLastConnected);
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * Get the remote Bluetooth device to connect to by default according to the specified policy. Only devices with at least one successful connection are considered.
+     *
+     * @param policy Either {@link #POLICY_MOST_RECENT} or {@link #POLICY_MOST_RELIABLE}.
+     * @return the preferred device, or null if no device has been connected before
+     */
+    public synchronized KnownDevice getPreferredDevice(int policy) {
+        KnownDevice preferred = null;
+        for (KnownDevice d : mDevices.values()) {
+            if (d.mConnectCount == 0)
+                continue;
+            if (preferred == null || isPreferred(d, preferred, policy))
+                preferred = d;
+        }
+        return preferred;
+    }
+
+    private static boolean isPreferred(KnownDevice d, KnownDevice current, int policy) {
+        if (policy == POLICY_MOST_RELIABLE) {
+            int rate = Float.compare(d.getSuccessRate(), current.getSuccessRate());
+            if (rate != 0)
+                return rate > 0;
+            if (d.mConnectCount != current.mConnectCount)
+                return d.mConnectCount > current.mConnectCount;
+        }
+        return d.mLastConnected > current.mLastConnected;
+    }
+
+    private static int compareLong(long lhs, long rhs) {
+        return (lhs < rhs) ? -1 : ((lhs == rhs) ? 0 : 1);
+    }
+
+    /**
+     * Remove a remote Bluetooth device from the registry.
+     *
+     * @param address The MAC address of the remote device.
+     */
+    public synchronized void forget(String address) {
+        if (mDevices.remove(address) != null) {
+            mPreferences.edit()
+                    .remove(KEY_NAME + address)
+                    .remove(KEY_LAST_CONNECTED + address)
+                    .remove(KEY_CONNECT_COUNT + address)
+                    .remove(KEY_FAILURE_COUNT + address)
+                    .apply();
+        }
+    }
+
+    /**
+     * Remove all remote Bluetooth devices from the registry.
+     */
+    public synchronized void clear() {
+        mDevices.clear();
+        mPreferences.edit().clear().apply();
+    }
+
+}
@@ -9,14 +9,20 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Create an instance of this class in your Android application to use the Blue2Serial library. BluetoothSerial creates a Bluetooth serial port using the Serial Port Profile (SPP) and manages its lifecycle.
  *
  * @author Macro Yau
  */
-public class BluetoothSerial {
+public class BluetoothSerial implements SerialLink {
 
     private static final String TAG = "BluetoothSerial";
 
@@ -34,15 +40,54 @@ public class BluetoothSerial {
 
     private static final byte[] CRLF = { 0x0D, 0x0A }; // \r\n
 
+    private static final long COMPRESSION_DEFAULT_MAX_DELAY = 20; // ms
+
+    private static final int UART_BITS_PER_BYTE = 10; // 8N1: start bit, 8 data bits, stop bit
+    private static final int PACING_MIN_BURST = 16;
+    private static final int PACING_BURSTS_PER_SECOND = 100;
+
+    static final long AUTO_CONNECT_MIN_DELAY = 1000; // ms
+    static final long AUTO_CONNECT_MAX_DELAY = 30000; // ms
+
     private BluetoothAdapter mAdapter;
     private Set<BluetoothDevice> mPairedDevices;
 
     private BluetoothSerialListener mListener;
+    private final List<ListenerRegistration> mListeners = new CopyOnWriteArrayList<>();
+    private final List<BluetoothSerialStreamListener> mStreamListeners = new CopyOnWriteArrayList<>();
+    private final List<SerialInterceptor> mInterceptors = new CopyOnWriteArrayList<>();
     private SPPService mService;
 
     private String mConnectedDeviceName, mConnectedDeviceAddress;
 
+    private BluetoothDeviceRegistry mRegistry;
+    private boolean mAutoConnect;
+    private int mAutoConnectPolicy = BluetoothDeviceRegistry.POLICY_MOST_RECENT;
+    private long mAutoConnectDelay = AUTO_CONNECT_MIN_DELAY;
+    private String mConnectingDeviceAddress;
+    private boolean mAutoConnecting; // The current connect attempt is made by auto-connect rather than by the app
+    private int mLastState = STATE_DISCONNECTED;
+    private boolean mStopped;
+
+    private boolean mCompression;
+    private long mCompressionMaxDelay = COMPRESSION_DEFAULT_MAX_DELAY;
+
+    private boolean mReadDispatch = true;
+
+    private double mPacingRate;
+    private int mPacingBurst;
+    private boolean mFlowControl;
+
+    private ExecutorService mConnectExecutor, mReadExecutor;
+    private Executor mWriteExecutor;
+
+    private final LatencyStats mDispatchLagStats = new LatencyStats();
+    private BluetoothSerialTrace mTrace;
+    private int mWriteChunkSize;
+    private SPPService.TransportFactory mTransportFactory;
+
     private boolean isRaw;
+    private boolean isTimestamped;
 
     /**
      * Constructor.
@@ -52,7 +97,9 @@ public class BluetoothSerial {
     public BluetoothSerial(Context context, BluetoothSerialListener listener) {
         mAdapter = getAdapter(context);
         mListener = listener;
+        mRegistry = new BluetoothDeviceRegistry(context);
         isRaw = mListener instanceof BluetoothSerialRawListener;
+        isTimestamped = mListener instanceof BluetoothSerialTimestampListener;
     }
 
     public static BluetoothAdapter getAdapter(Context context) {
@@ -68,12 +115,20 @@ public class BluetoothSerial {
     }
 
     /**
-     * Check the presence of a Bluetooth adapter on this device and set up the Bluetooth Serial Port Profile (SPP) service.
+     * Check the presence of a Bluetooth adapter on this device and set up the Bluetooth Serial Port Profile (SPP) service. The adapter need not be enabled if a transport factory replaces the RFCOMM sockets.
      */
     public void setup() {
-        if (checkBluetooth()) {
+        if ((mTransportFactory != null && mAdapter != null) || checkBluetooth()) {
             mPairedDevices = mAdapter.getBondedDevices();
-            mService = new SPPService(mHandler);
+            mService = new SPPService(mHandler, mStreamListeners, mInterceptors);
+            mService.setCompression(mCompression, mCompressionMaxDelay);
+            mService.setExecutors(mConnectExecutor, mReadExecutor, mWriteExecutor);
+            mService.setReadDispatch(mReadDispatch);
+            mService.setPacing(mPacingRate, mPacingBurst, mFlowControl);
+            mService.setTrace(mTrace);
+            mService.setChunkSize(mWriteChunkSize);
+            mService.setTransportFactory(mTransportFactory);
+            mService.setEventListener(mServiceListener);
         }
     }
 
@@ -89,10 +144,26 @@ public class BluetoothSerial {
     public boolean checkBluetooth() {
         if (mAdapter == null) {
             mListener.onBluetoothNotSupported();
+            for (final ListenerRegistration r : mListeners) {
+                r.mDispatcher.dispatchAlways(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.mListener.onBluetoothNotSupported();
+                    }
+                });
+            }
             return false;
         } else {
             if (!mAdapter.isEnabled()) {
                 mListener.onBluetoothDisabled();
+                for (final ListenerRegistration r : mListeners) {
+                    r.mDispatcher.dispatchAlways(new Runnable() {
+                        @Override
+                        public void run() {
+                            r.mListener.onBluetoothDisabled();
+                        }
+                    });
+                }
                 return false;
             } else {
                 return true;
@@ -101,14 +172,71 @@ public class BluetoothSerial {
     }
 
     /**
-     * Open a Bluetooth serial port and get ready to establish a connection with a remote device.
+     * Open a Bluetooth serial port and get ready to establish a connection with a remote device. If auto-connect is enabled, a connection to the preferred known device is initiated immediately.
      */
     public void start() {
         if (mService != null && mService.getState() == STATE_DISCONNECTED) {
+            mStopped = false;
             mService.start();
+
+            if (mAutoConnect) {
+                BluetoothDeviceRegistry.KnownDevice device = mRegistry.getPreferredDevice(mAutoConnectPolicy);
+                if (device != null && isPaired(device.getAddress()))
+                    connectAutomatically(device.getAddress());
+            }
         }
     }
 
+    /**
+     * Connect to the preferred known remote Bluetooth device automatically on {@link #start()} and after the connection is lost. Failed automatic attempts are retried with back-off, while a failed {@link #connect(String)} by the app and a connection closed by {@link #stop()} are not retried.
+     *
+     * @param autoConnect Set to true to enable auto-connect.
+     */
+    public void setAutoConnect(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+        if (!autoConnect)
+            mHandler.removeCallbacks(mAutoConnectRunnable);
+    }
+
+    /**
+     * Connect to the preferred known remote Bluetooth device automatically on {@link #start()} and after the connection is lost.
+     *
+     * @param autoConnect Set to true to enable auto-connect.
+     * @param policy Either {@link com.macroyau.blue2serial.BluetoothDeviceRegistry#POLICY_MOST_RECENT} or {@link com.macroyau.blue2serial.BluetoothDeviceRegistry#POLICY_MOST_RELIABLE}.
+     */
+    public void setAutoConnect(boolean autoConnect, int policy) {
+        mAutoConnectPolicy = policy;
+        setAutoConnect(autoConnect);
+    }
+
+    /**
+     * Return true if auto-connect is enabled.
+     *
+     * @return true if auto-connect is enabled
+     */
+    public boolean isAutoConnect() {
+        return mAutoConnect;
+    }
+
+    /**
+     * Get the registry of the remote Bluetooth devices connected before.
+     *
+     * @return the device registry
+     */
+    public BluetoothDeviceRegistry getDeviceRegistry() {
+        return mRegistry;
+    }
+
+    private boolean isPaired(String address) {
+        if (mPairedDevices == null)
+            return false;
+        for (BluetoothDevice d : mPairedDevices) {
+            if (d.getAddress().equals(address))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Connect to a remote Bluetooth device with the specified MAC address.
      *
@@ -132,21 +260,295 @@ public class BluetoothSerial {
      */
     public void connect(BluetoothDevice device) {
         if (mService != null) {
+            mHandler.removeCallbacks(mAutoConnectRunnable);
+            mStopped = false;
+            mAutoConnecting = false;
+            mConnectingDeviceAddress = device.getAddress();
             mService.connect(device);
         }
     }
 
+    /**
+     * Add a listener to be invoked on its own thread in addition to the {@link com.macroyau.blue2serial.BluetoothSerialListener} given to the constructor, e.g. for a recorder or a protocol decoder. If the listener lags behind by more than the specified number of reads and writes, further ones are dropped for this listener only, so a slow listener does not delay the others.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialListener} to add.
+     * @param capacity The maximum number of reads and writes waiting to be delivered to the listener.
+     * @return the dispatcher of the listener, for its delivery and drop statistics
+     */
+    public BoundedDispatcher addListener(BluetoothSerialListener listener, int capacity) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new BluetoothSerialThreadFactory(TAG + "-listener"));
+        return addListener(listener, executor, capacity, executor);
+    }
+
+    /**
+     * Add a listener to be invoked on the specified executor in addition to the {@link com.macroyau.blue2serial.BluetoothSerialListener} given to the constructor. The callbacks are run one at a time in order. If the listener lags behind by more than the specified number of reads and writes, further ones are dropped for this listener only, so a slow listener does not delay the others.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialListener} to add.
+     * @param executor The executor running the callbacks, e.g. a {@link android.os.Handler}-backed executor of another looper.
+     * @param capacity The maximum number of reads and writes waiting to be delivered to the listener.
+     * @return the dispatcher of the listener, for its delivery and drop statistics
+     */
+    public BoundedDispatcher addListener(BluetoothSerialListener listener, Executor executor, int capacity) {
+        return addListener(listener, executor, capacity, null);
+    }
+
+    private BoundedDispatcher addListener(BluetoothSerialListener listener, Executor executor, int capacity, ExecutorService ownedExecutor) {
+        ListenerRegistration r = new ListenerRegistration(listener, new BoundedDispatcher(executor, capacity), ownedExecutor);
+        mListeners.add(r);
+        return r.mDispatcher;
+    }
+
+    /**
+     * Remove a listener previously added by {@link #addListener(BluetoothSerialListener, Executor, int)}. The callbacks not yet delivered are discarded.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialListener} to remove.
+     */
+    public void removeListener(BluetoothSerialListener listener) {
+        for (ListenerRegistration r : mListeners) {
+            if (r.mListener == listener) {
+                mListeners.remove(r);
+                r.mDispatcher.shutdown();
+                if (r.mOwnedExecutor != null)
+                    r.mOwnedExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Add a listener to be invoked on the connection's I/O thread whenever bytes are read from the serial port.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialStreamListener} to add.
+     */
+    @Override
+    public void addStreamListener(BluetoothSerialStreamListener listener) {
+        mStreamListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener previously added by {@link #addStreamListener(BluetoothSerialStreamListener)}.
+     *
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialStreamListener} to remove.
+     */
+    @Override
+    public void removeStreamListener(BluetoothSerialStreamListener listener) {
+        mStreamListeners.remove(listener);
+    }
+
+    /**
+     * Open a blocking {@link java.io.InputStream} of the bytes read from the serial port, e.g. for an existing protocol parser. The stream is registered as a stream listener until it is closed, and may be opened before or while connected.
+     *
+     * @param timeout The maximum time a read waits for data in milliseconds, or 0 to wait indefinitely.
+     * @return the input stream
+     */
+    public SerialInputStream openInputStream(long timeout) {
+        SerialInputStream stream = new SerialInputStream(this);
+        stream.setReadTimeout(timeout);
+        return stream;
+    }
+
+    /**
+     * Open a buffered {@link java.io.OutputStream} writing to the serial port. Buffered bytes are written when the stream is flushed, blocking until they are written, and an {@link java.io.IOException} is thrown if not connected.
+     *
+     * @return the output stream
+     */
+    public SerialOutputStream openOutputStream() {
+        return new SerialOutputStream(this);
+    }
+
+    /**
+     * Add an interceptor to the end of the pipeline transforming the bytes written and read, i.e. closest to the wire. Written bytes pass through the interceptors in the order they are added, and read bytes in reverse order. The pipeline is installed when a connection is established, so this takes effect on the next connection.
+     *
+     * @param interceptor The {@link com.macroyau.blue2serial.SerialInterceptor} to add.
+     */
+    public void addInterceptor(SerialInterceptor interceptor) {
+        mInterceptors.add(interceptor);
+    }
+
+    /**
+     * Remove an interceptor previously added by {@link #addInterceptor(SerialInterceptor)}. Takes effect on the next connection.
+     *
+     * @param interceptor The {@link com.macroyau.blue2serial.SerialInterceptor} to remove.
+     */
+    public void removeInterceptor(SerialInterceptor interceptor) {
+        mInterceptors.remove(interceptor);
+    }
+
+    /**
+     * Set the executors running the connection's I/O work, e.g. to control thread priorities with a {@link com.macroyau.blue2serial.BluetoothSerialThreadFactory} or to share threads with the rest of the application. By default, connects and reads run on process-wide cached thread pools, so reconnecting reuses idle threads, and writes run on the caller's thread. Takes effect on the next connection.
+     *
+     * @param connectExecutor The executor for connecting to remote devices, or null for the default pool.
+     * @param readExecutor The executor for the read loop, which occupies a thread for the whole connection, or null for the default pool.
+     * @param writeExecutor The executor for writes, or null to write on the caller's thread. It must run the writes one at a time in submission order, e.g. a single thread executor.
+     */
+    public void setExecutors(ExecutorService connectExecutor, ExecutorService readExecutor, Executor writeExecutor) {
+        mConnectExecutor = connectExecutor;
+        mReadExecutor = readExecutor;
+        mWriteExecutor = writeExecutor;
+        if (mService != null)
+            mService.setExecutors(connectExecutor, readExecutor, writeExecutor);
+    }
+
+    /**
+     * Compress the data on the serial link if the remote device supports it. Both ends negotiate compression when a connection is established, so this takes effect on the next connection.
+     *
+     * @param compression Set to true to enable compression.
+     */
+    public void setCompression(boolean compression) {
+        setCompression(compression, mCompressionMaxDelay);
+    }
+
+    /**
+     * Compress the data on the serial link if the remote device supports it. Both ends negotiate compression when a connection is established, so this takes effect on the next connection.
+     *
+     * @param compression Set to true to enable compression.
+     * @param maxDelay The maximum time in milliseconds written data may be held back to be compressed together with subsequent data.
+     */
+    public void setCompression(boolean compression, long maxDelay) {
+        mCompression = compression;
+        mCompressionMaxDelay = maxDelay;
+        if (mService != null)
+            mService.setCompression(compression, maxDelay);
+    }
+
+    /**
+     * Return true if the data on the current connection is compressed in both directions.
+     *
+     * @return true if compression is negotiated with the remote device
+     */
+    public boolean isCompressionActive() {
+        return mService != null && mService.isCompressionActive();
+    }
+
+    /**
+     * Deliver the bytes read to the {@link com.macroyau.blue2serial.BluetoothSerialListener} on the main thread. Turn this off when all reads are consumed by {@link com.macroyau.blue2serial.BluetoothSerialStreamListener}s, so that each read is no longer copied and decoded into a String.
+     *
+     * @param readDispatch Set to false to stop delivering reads to the main thread.
+     */
+    public void setReadDispatch(boolean readDispatch) {
+        mReadDispatch = readDispatch;
+        if (mService != null)
+            mService.setReadDispatch(readDispatch);
+    }
+
+    /**
+     * Pace the written bytes to the baud rate of the remote device's UART, so that the buffer of a Bluetooth serial module, e.g. HC-05 or HC-06, does not overflow when a large amount of data is written at once. Paced writes block until they are sent, so a write executor should be set by {@link #setExecutors(ExecutorService, ExecutorService, Executor)} to keep them off the main thread. Takes effect on the next connection.
+     *
+     * @param baudRate The baud rate of the UART with 8N1 framing, or 0 to disable pacing.
+     */
+    public void setWritePacing(int baudRate) {
+        double rate = (double) baudRate / UART_BITS_PER_BYTE;
+        setPacing(rate, Math.max(PACING_MIN_BURST, (int) (rate / PACING_BURSTS_PER_SECOND)));
+    }
+
+    /**
+     * Pace the written bytes to a budget of bytes per interval, e.g. the buffer size of the remote device and the time it takes to drain it. Paced writes block until they are sent, so a write executor should be set by {@link #setExecutors(ExecutorService, ExecutorService, Executor)} to keep them off the main thread. Takes effect on the next connection.
+     *
+     * @param bytes The number of bytes which may be written in each interval, or 0 to disable pacing.
+     * @param interval The interval in milliseconds.
+     */
+    public void setWritePacing(int bytes, long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Interval must be positive!");
+
+        setPacing(bytes * 1000.0 / interval, bytes);
+    }
+
+    private void setPacing(double rate, int burst) {
+        mPacingRate = Math.max(0, rate);
+        mPacingBurst = burst;
+        if (mService != null)
+            mService.setPacing(mPacingRate, mPacingBurst, mFlowControl);
+    }
+
+    /**
+     * Honor the XON/XOFF software flow control bytes sent by the remote device. Writing pauses on XOFF (0x13) and resumes on XON (0x11), and both bytes are removed from the data read. Must not be enabled for binary protocols, including compression. Takes effect on the next connection.
+     *
+     * @param flowControl Set to true to enable XON/XOFF flow control.
+     */
+    public void setFlowControl(boolean flowControl) {
+        mFlowControl = flowControl;
+        if (mService != null)
+            mService.setPacing(mPacingRate, mPacingBurst, flowControl);
+    }
+
+    /**
+     * Return true if writing is paused by an XOFF from the remote device.
+     *
+     * @return true if writing is paused
+     */
+    public boolean isWritePaused() {
+        return mService != null && mService.isWritePaused();
+    }
+
+    /**
+     * Drop the current connection as if it was lost, e.g. when the link is found to be dead.
+     */
+    @Override
+    public void dropConnection() {
+        if (mService != null && mService.getState() != STATE_DISCONNECTED) {
+            mService.reconnect();
+        }
+    }
+
     /**
      * Write the specified bytes to the Bluetooth serial port.
      *
      * @param data The data to be written.
      */
+    @Override
     public void write(byte[] data) {
         if (mService.getState() == STATE_CONNECTED) {
             mService.write(data);
         }
     }
 
+    /**
+     * Write the specified bytes to the Bluetooth serial port on the caller's thread, bypassing the write executor set by {@link #setExecutors(ExecutorService, ExecutorService, Executor)}, and block until they are written. Unlike {@link #write(byte[])}, the bytes are not dropped silently when disconnected.
+     *
+     * @param data The data to be written.
+     * @throws IOException if not connected, the write fails or the thread is interrupted
+     */
+    @Override
+    public void writeAndWait(byte[] data) throws IOException {
+        if (mService == null)
+            throw new IOException("Not connected!");
+        mService.writeAndWait(data);
+    }
+
+    /**
+     * Write the specified bytes to the Bluetooth serial port ahead of the normal writes, e.g. an emergency stop during a large transfer. Urgent writes are written on the caller's thread, bypassing the write executor, and wait for at most one chunk of a write in progress.
+     *
+     * @param data The data to be written.
+     */
+    public void writeUrgent(byte[] data) {
+        if (mService.getState() == STATE_CONNECTED) {
+            mService.write(data, true);
+        }
+    }
+
+    /**
+     * Write the specified string to the Bluetooth serial port ahead of the normal writes.
+     *
+     * @param data The data to be written.
+     */
+    public void writeUrgent(String data) {
+        writeUrgent(data.getBytes());
+    }
+
+    /**
+     * Set the number of bytes written to the socket at once. Smaller chunks let urgent writes through sooner during a large write, at the cost of more socket writes. The default is 512 bytes. Takes effect on the next connection.
+     *
+     * @param chunkSize The chunk size in bytes.
+     */
+    public void setWriteChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+
+        mWriteChunkSize = chunkSize;
+        if (mService != null)
+            mService.setChunkSize(chunkSize);
+    }
+
     /**
      * Write the specified bytes to the Bluetooth serial port.
      *
@@ -182,6 +584,8 @@ public class BluetoothSerial {
      * Disconnect from the remote Bluetooth device and close the active Bluetooth serial port.
      */
     public void stop() {
+        mStopped = true;
+        mHandler.removeCallbacks(mAutoConnectRunnable);
         if (mService != null) {
             mService.stop();
         }
@@ -201,8 +605,9 @@ public class BluetoothSerial {
      *
      * @return true if connected to a device
      */
+    @Override
     public boolean isConnected() {
-        return (mService.getState() == STATE_CONNECTED);
+        return (mService != null && mService.getState() == STATE_CONNECTED);
     }
 
     /**
@@ -268,6 +673,46 @@ public class BluetoothSerial {
         return null;
     }
 
+    /**
+     * Get the statistics of the delay between reading bytes from the socket and delivering them to the {@link com.macroyau.blue2serial.BluetoothSerialListener} on the main thread.
+     *
+     * @return the dispatch lag statistics
+     */
+    public LatencyStats getDispatchLagStats() {
+        return mDispatchLagStats;
+    }
+
+    /**
+     * Record the connection events, i.e. state transitions, connect attempts, reads, writes, queue depths and dispatch lags, into a trace ring buffer. Use a {@link com.macroyau.blue2serial.BluetoothSerialAndroidTrace} to also emit systrace sections. Connect attempts, reads and writes are traced from the next connection.
+     *
+     * @param trace The {@link com.macroyau.blue2serial.BluetoothSerialTrace} to use, or null to disable tracing.
+     */
+    public void setTrace(BluetoothSerialTrace trace) {
+        mTrace = trace;
+        if (mService != null)
+            mService.setTrace(trace);
+    }
+
+    /**
+     * Get the trace set by {@link #setTrace(BluetoothSerialTrace)}, e.g. to dump it when a stall is detected.
+     *
+     * @return the trace, or null if tracing is disabled
+     */
+    public BluetoothSerialTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Set the factory creating the transports of outgoing connections, e.g. a fault-injecting transport for soak tests. Takes effect on the next connection. If set before {@link #setup()}, the adapter need not be enabled.
+     *
+     * @param factory The factory to use, or null for RFCOMM sockets.
+     */
+    void setTransportFactory(SPPService.TransportFactory factory) {
+        mTransportFactory = factory;
+        if (mService != null)
+            mService.setTransportFactory(factory);
+    }
+
     /**
      * Get the name of this device's Bluetooth adapter.
      *
@@ -293,15 +738,23 @@ public class BluetoothSerial {
                 case MESSAGE_STATE_CHANGE:
                     switch (msg.arg1) {
                         case STATE_CONNECTED:
+                            mRegistry.recordConnected(mConnectedDeviceAddress, mConnectedDeviceName);
+                            mAutoConnectDelay = AUTO_CONNECT_MIN_DELAY;
                             mListener.onBluetoothDeviceConnected(mConnectedDeviceName, mConnectedDeviceAddress);
                             break;
                         case STATE_CONNECTING:
                             mListener.onConnectingBluetoothDevice();
                             break;
                         case STATE_DISCONNECTED:
+                            if (mLastState == STATE_CONNECTING && !mStopped)
+                                mRegistry.recordFailure(mConnectingDeviceAddress);
+                            // Retry a lost connection or a failed automatic attempt, but not a failed connect by the app
+                            if (mLastState == STATE_CONNECTED || (mLastState == STATE_CONNECTING && mAutoConnecting))
+                                scheduleAutoConnect();
                             mListener.onBluetoothDeviceDisconnected();
                             break;
                     }
+                    mLastState = msg.arg1;
                     break;
                 case MESSAGE_WRITE:
                     byte[] bufferWrite = (byte[]) msg.obj;
@@ -312,10 +765,18 @@ public class BluetoothSerial {
                     }
                     break;
                 case MESSAGE_READ:
+                    long readTime = ((long) msg.arg1 << 32) | (msg.arg2 & 0xFFFFFFFFL);
+                    long lag = System.nanoTime() - readTime;
+                    mDispatchLagStats.add(lag);
+                    mService.onReadDispatched();
+                    if (mTrace != null)
+                        mTrace.record(BluetoothSerialTrace.EVENT_DISPATCH_LAG, lag);
                     byte[] bufferRead = (byte[]) msg.obj;
                     String messageRead = new String(bufferRead);
                     mListener.onBluetoothSerialRead(messageRead);
-                    if (isRaw) {
+                    if (isTimestamped) {
+                        ((BluetoothSerialTimestampListener) mListener).onBluetoothSerialReadRaw(bufferRead, readTime);
+                    } else if (isRaw) {
                         ((BluetoothSerialRawListener) mListener).onBluetoothSerialReadRaw(bufferRead);
                     }
                     break;
@@ -327,4 +788,108 @@ public class BluetoothSerial {
         }
     };
 
+    /**
+     * Fans the events out to the added listeners straight from the I/O threads, so that a busy main thread does not delay them.
+     */
+    private final SPPService.EventListener mServiceListener = new SPPService.EventListener() {
+        @Override
+        public void onStateChanged(int state, String name, String address) {
+            dispatchState(state, name, address);
+        }
+
+        @Override
+        public void onRead(byte[] buffer, int offset, int length, long timestamp) {
+            if (mListeners.isEmpty())
+                return;
+            // The buffer is reused by the next read, while the listeners run later on their own threads
+            byte[] read = new byte[length];
+            System.arraycopy(buffer, offset, read, 0, length);
+            dispatchData(true, read, new String(read), timestamp);
+        }
+
+        @Override
+        public void onWrite(byte[] data) {
+            if (!mListeners.isEmpty())
+                dispatchData(false, data, new String(data), 0);
+        }
+    };
+
+    private void dispatchState(final int state, final String name, final String address) {
+        for (final ListenerRegistration r : mListeners) {
+            r.mDispatcher.dispatchAlways(new Runnable() {
+                @Override
+                public void run() {
+                    switch (state) {
+                        case STATE_CONNECTED:
+                            r.mListener.onBluetoothDeviceConnected(name, address);
+                            break;
+                        case STATE_CONNECTING:
+                            r.mListener.onConnectingBluetoothDevice();
+                            break;
+                        case STATE_DISCONNECTED:
+                            r.mListener.onBluetoothDeviceDisconnected();
+                            break;
+                    }
+                }
+            });
+        }
+    }
+
+    private void dispatchData(final boolean read, final byte[] bytes, final String message, final long readTime) {
+        for (final ListenerRegistration r : mListeners) {
+            r.mDispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (read) {
+                        r.mListener.onBluetoothSerialRead(message);
+                        if (r.mListener instanceof BluetoothSerialTimestampListener)
+                            ((BluetoothSerialTimestampListener) r.mListener).onBluetoothSerialReadRaw(bytes, readTime);
+                        else if (r.mListener instanceof BluetoothSerialRawListener)
+                            ((BluetoothSerialRawListener) r.mListener).onBluetoothSerialReadRaw(bytes);
+                    } else {
+                        r.mListener.onBluetoothSerialWrite(message);
+                        if (r.mListener instanceof BluetoothSerialRawListener)
+                            ((BluetoothSerialRawListener) r.mListener).onBluetoothSerialWriteRaw(bytes);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class ListenerRegistration {
+
+        private final BluetoothSerialListener mListener;
+        private final BoundedDispatcher mDispatcher;
+        private final ExecutorService mOwnedExecutor;
+
+        private ListenerRegistration(BluetoothSerialListener listener, BoundedDispatcher dispatcher, ExecutorService ownedExecutor) {
+            mListener = listener;
+            mDispatcher = dispatcher;
+            mOwnedExecutor = ownedExecutor;
+        }
+
+    }
+
+    private void scheduleAutoConnect() {
+        if (!mAutoConnect || mStopped || mConnectingDeviceAddress == null)
+            return;
+
+        mHandler.removeCallbacks(mAutoConnectRunnable);
+        mHandler.postDelayed(mAutoConnectRunnable, mAutoConnectDelay);
+        mAutoConnectDelay = Math.min(mAutoConnectDelay * 2, AUTO_CONNECT_MAX_DELAY);
+    }
+
+    private void connectAutomatically(String address) {
+        connect(address);
+        mAutoConnecting = true;
+    }
+
+    private final Runnable mAutoConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mService != null && mService.getState() == STATE_DISCONNECTED && !mStopped)
+                connectAutomatically(mConnectingDeviceAddress);
+        }
+    };
+
 }
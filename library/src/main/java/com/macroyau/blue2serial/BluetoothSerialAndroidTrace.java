@@ -0,0 +1,43 @@
+package com.macroyau.blue2serial;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * {@link com.macroyau.blue2serial.BluetoothSerialTrace} which also emits the connect, read and write sections to {@link android.os.Trace}, so that they show up in systrace and Perfetto captures alongside the rest of the system. Sections are only emitted on Android 4.3 or above.
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialAndroidTrace extends BluetoothSerialTrace {
+
+    private static final boolean SECTIONS_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    /**
+     * Constructor. The buffer holds the most recent 4096 events.
+     */
+    public BluetoothSerialAndroidTrace() {
+        super();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of events held.
+     */
+    public BluetoothSerialAndroidTrace(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public void beginSection(String name) {
+        if (SECTIONS_SUPPORTED)
+            Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        if (SECTIONS_SUPPORTED)
+            Trace.endSection();
+    }
+
+}
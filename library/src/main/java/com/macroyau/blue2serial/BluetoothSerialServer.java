@@ -0,0 +1,371 @@
+package com.macroyau.blue2serial;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server accepting inbound Bluetooth Serial Port Profile (SPP) connections, so that the device can act as a collector which remote devices connect to. Each accepted connection becomes a {@link com.macroyau.blue2serial.BluetoothSerialServer.Session} with its own {@link com.macroyau.blue2serial.BluetoothSerialStreamListener}.
+ *
+ * <p>Bluetooth sockets only support blocking reads, so each session occupies a thread while it is open. The threads are taken from a pool shared by all sessions and are reused as remote devices come and go.</p>
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialServer {
+
+    private static final String TAG = "BluetoothSerialServer";
+
+    private static final int DEFAULT_MAX_SESSIONS = 7; // Maximum number of active links of a Bluetooth piconet
+
+    /**
+     * Listener for the sessions of the server. The callbacks are invoked on the server's threads.
+     */
+    public interface ServerListener {
+
+        /**
+         * A remote device is connected.
+         *
+         * @param session The new session.
+         * @return the {@link com.macroyau.blue2serial.BluetoothSerialStreamListener} receiving the data of the session, or null to reject the connection
+         */
+        BluetoothSerialStreamListener onSessionAccepted(Session session);
+
+        /**
+         * A session is closed, either by the remote device or by the server.
+         *
+         * @param session The closed session.
+         */
+        void onSessionClosed(Session session);
+
+        /**
+         * The server stops accepting connections because the server socket is closed or fails.
+         */
+        void onServerStopped();
+
+    }
+
+    /**
+     * A connection accepted from a remote device.
+     */
+    public class Session {
+
+        private final int mId;
+        private final BluetoothSocket mSocket;
+        private final String mDeviceName, mDeviceAddress;
+        private volatile SerialConnection mConnection;
+        private volatile boolean mClosed;
+
+        private Session(int id, BluetoothSocket socket) {
+            mId = id;
+            mSocket = socket;
+            BluetoothDevice device = socket.getRemoteDevice();
+            mDeviceName = device.getName();
+            mDeviceAddress = device.getAddress();
+        }
+
+        /**
+         * Get the ID of the session, unique within the server.
+         *
+         * @return the session ID
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Get the name of the connected remote device.
+         *
+         * @return the name of the remote device
+         */
+        public String getDeviceName() {
+            return mDeviceName;
+        }
+
+        /**
+         * Get the MAC address of the connected remote device.
+         *
+         * @return the MAC address of the remote device
+         */
+        public String getDeviceAddress() {
+            return mDeviceAddress;
+        }
+
+        /**
+         * Return true if the session is open.
+         *
+         * @return true if the session is open
+         */
+        public boolean isOpen() {
+            return !mClosed;
+        }
+
+        /**
+         * Write the specified bytes to the remote device on the caller's thread.
+         *
+         * @param data The data to be written.
+         * @return true if the data is written
+         */
+        public boolean write(byte[] data) {
+            SerialConnection connection = mConnection;
+            if (mClosed || connection == null)
+                return false;
+
+            try {
+                synchronized (this) {
+                    connection.write(data);
+                }
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write the socket of session " + mId + "!");
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Write the specified string to the remote device on the caller's thread.
+         *
+         * @param data The data to be written.
+         * @return true if the data is written
+         */
+        public boolean write(String data) {
+            return write(data.getBytes());
+        }
+
+        /**
+         * Close the session.
+         */
+        public void close() {
+            mClosed = true;
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the socket of session " + mId + "!");
+            }
+        }
+
+        private void run() {
+            List<BluetoothSerialStreamListener> listeners = new CopyOnWriteArrayList<>();
+            try {
+                mConnection = new SerialConnection(new BluetoothSocketTransport(mSocket), listeners, new SerialConnection.Callback() {
+                    @Override
+                    public void onRead(byte[] buffer, int offset, int length, long timestamp) {
+                    }
+
+                    @Override
+                    public void onClosed(SerialConnection connection) {
+                        close();
+                        removeSession(Session.this);
+                        mServerListener.onSessionClosed(Session.this);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "I/O streams cannot be created from the socket of session " + mId + "!");
+                close();
+                removeSession(this);
+                return;
+            }
+
+            BluetoothSerialStreamListener listener = mServerListener.onSessionAccepted(this);
+            if (listener == null) {
+                close();
+                removeSession(this);
+                return;
+            }
+
+            listeners.add(listener);
+            mConnection.run();
+        }
+
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final String mServiceName;
+    private final ServerListener mServerListener;
+    private final AtomicInteger mNextSessionId = new AtomicInteger();
+    private final List<Session> mSessions = new ArrayList<>();
+
+    private ExecutorService mExecutor; // Set by the caller, who shuts it down
+    private ExecutorService mOwnedExecutor; // Created and shut down by the server
+    private ExecutorService mActiveExecutor;
+    private boolean mSecure = true;
+    private int mMaxSessions = DEFAULT_MAX_SESSIONS;
+    private BluetoothServerSocket mServerSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param serviceName The service name in the SDP record of the server.
+     * @param listener The {@link com.macroyau.blue2serial.BluetoothSerialServer.ServerListener} to use.
+     */
+    public BluetoothSerialServer(String serviceName, ServerListener listener) {
+        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        mServiceName = serviceName;
+        mServerListener = listener;
+    }
+
+    /**
+     * Set the executor running the accept loop and the read loop of each session, which occupy a thread each. Takes effect on the next start.
+     *
+     * @param executor The executor to use, or null for a cached thread pool owned by the server. The server does not shut down an executor set here.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Require authenticated and encrypted connections. Takes effect on the next start.
+     *
+     * @param secure Set to false to accept connections from devices which are not paired.
+     */
+    public synchronized void setSecure(boolean secure) {
+        mSecure = secure;
+    }
+
+    /**
+     * Set the maximum number of concurrent sessions. Further connections are closed as soon as they are accepted.
+     *
+     * @param maxSessions The maximum number of sessions.
+     */
+    public synchronized void setMaxSessions(int maxSessions) {
+        mMaxSessions = maxSessions;
+    }
+
+    /**
+     * Start listening for inbound connections.
+     *
+     * @return true if the server socket is opened, or false if it cannot be opened or Bluetooth is not supported
+     */
+    public synchronized boolean start() {
+        if (mServerSocket != null)
+            return true;
+
+        if (mAdapter == null) {
+            Log.e(TAG, "Bluetooth is not supported!");
+            return false;
+        }
+
+        try {
+            if (mSecure)
+                mServerSocket = mAdapter.listenUsingRfcommWithServiceRecord(mServiceName, SPPService.UUID_SPP);
+            else
+                mServerSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(mServiceName, SPPService.UUID_SPP);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to listen on the server socket!");
+            return false;
+        }
+
+        if (mExecutor != null) {
+            mActiveExecutor = mExecutor;
+        } else {
+            if (mOwnedExecutor == null)
+                mOwnedExecutor = Executors.newCachedThreadPool(new BluetoothSerialThreadFactory(TAG));
+            mActiveExecutor = mOwnedExecutor;
+        }
+
+        final BluetoothServerSocket serverSocket = mServerSocket;
+        mActiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stop listening for inbound connections and close all sessions. The thread pool created by the server, if any, is shut down once the sessions end.
+     */
+    public void stop() {
+        List<Session> sessions;
+        ExecutorService ownedExecutor;
+        synchronized (this) {
+            closeServerSocket();
+            sessions = new ArrayList<>(mSessions);
+            ownedExecutor = mOwnedExecutor;
+            mOwnedExecutor = null;
+        }
+
+        for (Session s : sessions)
+            s.close();
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown(); // The accept loop and the read loops end as their sockets are closed
+    }
+
+    /**
+     * Return true if the server is listening for inbound connections.
+     *
+     * @return true if the server is listening
+     */
+    public synchronized boolean isListening() {
+        return mServerSocket != null;
+    }
+
+    /**
+     * Get the open sessions.
+     *
+     * @return a snapshot of the open sessions
+     */
+    public synchronized List<Session> getSessions() {
+        return new ArrayList<>(mSessions);
+    }
+
+    private void accept(BluetoothServerSocket serverSocket) {
+        while (true) {
+            BluetoothSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                break; // Server socket closed
+            }
+
+            final Session session = new Session(mNextSessionId.incrementAndGet(), socket);
+            synchronized (this) {
+                if (mServerSocket != serverSocket || mSessions.size() >= mMaxSessions) {
+                    Log.e(TAG, "Rejected connection from " + session.getDeviceAddress() + "!");
+                    session.close();
+                    continue;
+                }
+                mSessions.add(session);
+                mActiveExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.run();
+                    }
+                });
+            }
+        }
+
+        synchronized (this) {
+            if (mServerSocket == serverSocket)
+                closeServerSocket();
+        }
+        mServerListener.onServerStopped();
+    }
+
+    private synchronized void closeServerSocket() {
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the server socket!");
+            }
+            mServerSocket = null;
+        }
+    }
+
+    private synchronized void removeSession(Session session) {
+        mSessions.remove(session);
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.macroyau.blue2serial;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for the I/O executors of {@link com.macroyau.blue2serial.BluetoothSerial}, creating named daemon threads with a specified Android thread priority.
+ *
+ * @author Macro Yau
+ */
+public class BluetoothSerialThreadFactory implements ThreadFactory {
+
+    private final String mName;
+    private final int mPriority;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /**
+     * Constructor. Threads are created with the default priority.
+     *
+     * @param name The name prefix of the threads.
+     */
+    public BluetoothSerialThreadFactory(String name) {
+        this(name, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name The name prefix of the threads.
+     * @param priority The Android thread priority, e.g. {@link android.os.Process#THREAD_PRIORITY_URGENT_AUDIO} for latency-sensitive reads.
+     */
+    public BluetoothSerialThreadFactory(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(mPriority);
+                r.run();
+            }
+        }, mName + "-" + mCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.macroyau.blue2serial;
+
+/**
+ * Listener for Bluetooth events involving byte arrays stamped with the time they are read from the socket.
+ *
+ * @author Macro Yau
+ */
+public interface BluetoothSerialTimestampListener extends BluetoothSerialRawListener {
+
+    /**
+     * Specified message is read from the serial port. For a timestamp listener, this method is invoked instead of {@link #onBluetoothSerialReadRaw(byte[])}.
+     *
+     * @param bytes The byte array read.
+     * @param timestamp The {@link System#nanoTime()} at which the read from the socket returned.
+     */
+    void onBluetoothSerialReadRaw(byte[] bytes, long timestamp);
+
+}
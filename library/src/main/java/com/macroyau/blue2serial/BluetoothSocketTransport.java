@@ -0,0 +1,42 @@
+package com.macroyau.blue2serial;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link com.macroyau.blue2serial.SerialTransport} over a Bluetooth RFCOMM socket.
+ *
+ * @author Macro Yau
+ */
+class BluetoothSocketTransport implements SPPService.ConnectableTransport {
+
+    private final BluetoothSocket mSocket;
+
+    BluetoothSocketTransport(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+}
@@ -8,9 +8,14 @@ import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Encapsulated service class for implementing the Bluetooth Serial Port Profile (SPP).
@@ -21,152 +26,501 @@ public class SPPService {
 
     private static final String TAG = "SPPService";
 
-    private static final UUID UUID_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    static final UUID UUID_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"); // Shared with BluetoothSerialServer
+
+    /**
+     * Creates the transports of outgoing connections, e.g. replaced by tests to run the service without a remote device.
+     */
+    interface TransportFactory {
+
+        /**
+         * Create an unconnected transport to the specified device. Closing it cancels a pending connect.
+         *
+         * @param device The remote device.
+         * @return the transport
+         * @throws IOException if the transport cannot be created
+         */
+        ConnectableTransport createTransport(BluetoothDevice device) throws IOException;
+
+    }
+
+    /**
+     * Receives the events of the service on the thread raising them, i.e. an I/O thread or the thread changing the state, rather than on the main thread. State changes are delivered in order after the service lock is released.
+     */
+    interface EventListener {
+
+        void onStateChanged(int state, String name, String address);
+
+        void onRead(byte[] buffer, int offset, int length, long timestamp);
+
+        void onWrite(byte[] data);
+
+    }
+
+    /**
+     * {@link com.macroyau.blue2serial.SerialTransport} which is connected by a blocking call on the connect executor.
+     */
+    interface ConnectableTransport extends SerialTransport {
+
+        /**
+         * Connect to the remote device, blocking until connected.
+         *
+         * @throws IOException if the connection fails or is cancelled
+         */
+        void connect() throws IOException;
+
+    }
+
+    private static final TransportFactory DEFAULT_TRANSPORT_FACTORY = new TransportFactory() {
+        @Override
+        public ConnectableTransport createTransport(BluetoothDevice device) throws IOException {
+            try {
+                return new BluetoothSocketTransport(device.createRfcommSocketToServiceRecord(UUID_SPP));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create a secure socket!");
+                return new BluetoothSocketTransport(device.createInsecureRfcommSocketToServiceRecord(UUID_SPP));
+            }
+        }
+    };
+
+    /**
+     * State change waiting to be delivered to the {@link com.macroyau.blue2serial.SPPService.EventListener} once the service lock is released.
+     */
+    private static class StateChange {
+
+        final int mState;
+        final String mName, mAddress;
+
+        StateChange(int state, String name, String address) {
+            mState = state;
+            mName = name;
+            mAddress = address;
+        }
+
+    }
+
+    private static ExecutorService sDefaultConnectExecutor;
+    private static ExecutorService sDefaultReadExecutor;
 
     private Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    private List<BluetoothSerialStreamListener> mStreamListeners;
+    private List<SerialInterceptor> mInterceptors;
+    private ExecutorService mConnectExecutor;
+    private ExecutorService mReadExecutor;
+    private Executor mWriteExecutor;
+    private TransportFactory mTransportFactory = DEFAULT_TRANSPORT_FACTORY;
+    private volatile EventListener mEventListener;
+    private ConnectTask mConnectTask;
+    private SerialConnection mConnection;
     private int mState;
+    private volatile boolean mReadDispatch = true;
+    private boolean mCompressionEnabled;
+    private long mCompressionMaxDelay;
+    private double mPacingRate;
+    private int mPacingBurst;
+    private boolean mFlowControl;
+    private int mChunkSize;
+    private volatile BluetoothSerialTrace mTrace;
+    private final AtomicInteger mPendingReads = new AtomicInteger();
+    private final AtomicInteger mPendingWrites = new AtomicInteger();
+    private final ArrayDeque<StateChange> mStateChanges = new ArrayDeque<>(); // Guarded by this
+    private final Object mStateDispatchLock = new Object();
 
     public SPPService(Handler handler) {
+        this(handler, new CopyOnWriteArrayList<BluetoothSerialStreamListener>());
+    }
+
+    public SPPService(Handler handler, List<BluetoothSerialStreamListener> streamListeners) {
+        this(handler, streamListeners, new CopyOnWriteArrayList<SerialInterceptor>());
+    }
+
+    public SPPService(Handler handler, List<BluetoothSerialStreamListener> streamListeners, List<SerialInterceptor> interceptors) {
         mState = BluetoothSerial.STATE_DISCONNECTED;
         mHandler = handler;
+        mStreamListeners = streamListeners;
+        mInterceptors = interceptors;
+        mConnectExecutor = getDefaultConnectExecutor();
+        mReadExecutor = getDefaultReadExecutor();
+    }
+
+    private static synchronized ExecutorService getDefaultConnectExecutor() {
+        if (sDefaultConnectExecutor == null)
+            sDefaultConnectExecutor = Executors.newCachedThreadPool(new BluetoothSerialThreadFactory("SPPService-connect"));
+        return sDefaultConnectExecutor;
+    }
+
+    private static synchronized ExecutorService getDefaultReadExecutor() {
+        if (sDefaultReadExecutor == null)
+            sDefaultReadExecutor = Executors.newCachedThreadPool(new BluetoothSerialThreadFactory("SPPService-read"));
+        return sDefaultReadExecutor;
+    }
+
+    /**
+     * Set the executors running the I/O work. Takes effect on the next connection.
+     *
+     * @param connectExecutor The executor for connecting sockets, or null for the default pool.
+     * @param readExecutor The executor for the read loops, which occupy a thread for the whole connection, or null for the default pool.
+     * @param writeExecutor The executor for writes, or null to write on the caller's thread. It must run the writes one at a time in order.
+     */
+    public synchronized void setExecutors(ExecutorService connectExecutor, ExecutorService readExecutor, Executor writeExecutor) {
+        mConnectExecutor = (connectExecutor != null) ? connectExecutor : getDefaultConnectExecutor();
+        mReadExecutor = (readExecutor != null) ? readExecutor : getDefaultReadExecutor();
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Set the factory creating the transports of outgoing connections. Takes effect on the next connection.
+     *
+     * @param factory The factory to use, or null for RFCOMM sockets.
+     */
+    synchronized void setTransportFactory(TransportFactory factory) {
+        mTransportFactory = (factory != null) ? factory : DEFAULT_TRANSPORT_FACTORY;
+    }
+
+    /**
+     * Set the listener receiving the events on the I/O threads, in addition to the messages sent to the handler.
+     *
+     * @param listener The listener, or null to remove it.
+     */
+    void setEventListener(EventListener listener) {
+        mEventListener = listener;
     }
 
     private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
+        setState(state, null, null);
+    }
+
+    private synchronized void setState(int state, String name, String address) {
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "setState() " + mState + " -> " + state);
 
         mState = state;
+        BluetoothSerialTrace trace = mTrace;
+        if (trace != null)
+            trace.record(BluetoothSerialTrace.EVENT_STATE, state);
         mHandler.obtainMessage(BluetoothSerial.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        if (mEventListener != null)
+            mStateChanges.add(new StateChange(state, name, address));
+    }
+
+    /**
+     * Deliver the queued state changes to the event listener in order, once the calling thread no longer holds the service lock, so that the listener never runs under it.
+     */
+    private void dispatchStateChanges() {
+        if (Thread.holdsLock(this))
+            return; // The outermost caller dispatches after releasing the lock
+
+        synchronized (mStateDispatchLock) {
+            while (true) {
+                StateChange change;
+                synchronized (this) {
+                    change = mStateChanges.poll();
+                }
+                if (change == null)
+                    return;
+                EventListener listener = mEventListener;
+                if (listener != null)
+                    listener.onStateChanged(change.mState, change.mName, change.mAddress);
+            }
+        }
     }
 
     public synchronized int getState() {
         return mState;
     }
 
-    public synchronized void start() {
-        Log.d(TAG, "start()");
+    public void setReadDispatch(boolean readDispatch) {
+        mReadDispatch = readDispatch;
+    }
+
+    public synchronized void setCompression(boolean enabled, long maxDelay) {
+        mCompressionEnabled = enabled;
+        mCompressionMaxDelay = maxDelay;
+    }
 
-        resetThreads();
-        setState(BluetoothSerial.STATE_DISCONNECTED);
+    public synchronized void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect(" + device + ")");
+    public void setTrace(BluetoothSerialTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Called on the main thread when a read is delivered, for tracing the depth of the read dispatch queue.
+     */
+    void onReadDispatched() {
+        mPendingReads.decrementAndGet();
+    }
+
+    public synchronized void setPacing(double rate, int burst, boolean flowControl) {
+        mPacingRate = rate;
+        mPacingBurst = burst;
+        mFlowControl = flowControl;
+    }
+
+    public synchronized boolean isWritePaused() {
+        return mConnection != null && mConnection.isWritePaused();
+    }
 
-        if (mState == BluetoothSerial.STATE_CONNECTING) {
-            resetConnectThread();
+    public synchronized boolean isCompressionActive() {
+        return mConnection != null && mConnection.isCompressionActive();
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "start()");
+
+            resetTasks();
+            setState(BluetoothSerial.STATE_DISCONNECTED);
         }
+        dispatchStateChanges();
+    }
+
+    public void connect(BluetoothDevice device) {
+        synchronized (this) {
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "connect(" + device + ")");
+
+            if (mState == BluetoothSerial.STATE_CONNECTING) {
+                resetConnectTask();
+            }
+
+            if (mState == BluetoothSerial.STATE_CONNECTED) {
+                resetConnection();
+            }
 
-        if (mState == BluetoothSerial.STATE_CONNECTED) {
-            resetConnectedThread();
+            mConnectTask = new ConnectTask(mTransportFactory, device);
+            mConnectExecutor.execute(mConnectTask);
+            setState(BluetoothSerial.STATE_CONNECTING);
         }
+        dispatchStateChanges();
+    }
 
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(BluetoothSerial.STATE_CONNECTING);
+    public void connected(BluetoothSocket socket, BluetoothDevice device) {
+        connected(new BluetoothSocketTransport(socket), device);
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "Connected to " + device + "!");
+    void connected(SerialTransport transport, BluetoothDevice device) {
+        onConnected(transport, device);
+        dispatchStateChanges();
+    }
 
-        resetThreads();
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+    private synchronized void onConnected(SerialTransport transport, BluetoothDevice device) {
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Connected to " + device + "!");
 
+        resetTasks();
+        try {
+            mConnection = new SerialConnection(transport, mStreamListeners, new ConnectedCallback());
+        } catch (IOException e) {
+            Log.e(TAG, "I/O streams cannot be created from the socket!");
+            try {
+                transport.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "Unable to close the socket!");
+            }
+            reconnect();
+            return;
+        }
+        if (mCompressionEnabled)
+            mConnection.setCompression(mCompressionMaxDelay);
+        mConnection.setPacing(mPacingRate, mPacingBurst, mFlowControl);
+        mConnection.setTrace(mTrace);
+        mConnection.setInterceptors(mInterceptors);
+        if (mChunkSize > 0)
+            mConnection.setChunkSize(mChunkSize);
+        mReadExecutor.execute(mConnection);
+
+        String name = device.getName();
+        String address = device.getAddress();
         Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_DEVICE_INFO);
         Bundle bundle = new Bundle();
-        bundle.putString(BluetoothSerial.KEY_DEVICE_NAME, device.getName());
-        bundle.putString(BluetoothSerial.KEY_DEVICE_ADDRESS, device.getAddress());
+        bundle.putString(BluetoothSerial.KEY_DEVICE_NAME, name);
+        bundle.putString(BluetoothSerial.KEY_DEVICE_ADDRESS, address);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        setState(BluetoothSerial.STATE_CONNECTED);
+        setState(BluetoothSerial.STATE_CONNECTED, name, address);
     }
 
-    public synchronized void stop() {
-        Log.d(TAG, "stop()");
+    public void stop() {
+        synchronized (this) {
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "stop()");
 
-        resetThreads();
-        setState(BluetoothSerial.STATE_DISCONNECTED);
+            resetTasks();
+            setState(BluetoothSerial.STATE_DISCONNECTED);
+        }
+        dispatchStateChanges();
     }
 
     public void write(byte[] data) {
-        ConnectedThread t;
+        write(data, false);
+    }
+
+    /**
+     * Write the specified bytes. Urgent writes bypass the write executor and take precedence over bulk writes at chunk granularity.
+     */
+    public void write(final byte[] data, boolean urgent) {
+        final SerialConnection t;
+        Executor executor;
         synchronized (this) {
             if (mState == BluetoothSerial.STATE_CONNECTED)
-                t = mConnectedThread;
+                t = mConnection;
             else
                 return;
+            executor = mWriteExecutor;
+        }
+
+        if (urgent) {
+            write(t, data, SerialConnection.PRIORITY_URGENT);
+        } else if (executor != null) {
+            int pending = mPendingWrites.incrementAndGet();
+            BluetoothSerialTrace trace = mTrace;
+            if (trace != null)
+                trace.record(BluetoothSerialTrace.EVENT_WRITE_QUEUE_DEPTH, pending);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mPendingWrites.decrementAndGet();
+                    write(t, data, SerialConnection.PRIORITY_BULK);
+                }
+            });
+        } else {
+            write(t, data, SerialConnection.PRIORITY_BULK);
+        }
+    }
+
+    /**
+     * Write the specified bytes on the caller's thread, bypassing the write executor, and block until they are written.
+     */
+    public void writeAndWait(byte[] data) throws IOException {
+        SerialConnection t;
+        synchronized (this) {
+            if (mState != BluetoothSerial.STATE_CONNECTED)
+                throw new IOException("Not connected!");
+            t = mConnection;
         }
-        t.write(data);
+
+        t.write(data, SerialConnection.PRIORITY_BULK);
+        onWritten(data);
+    }
+
+    private void write(SerialConnection connection, byte[] data, int priority) {
+        try {
+            connection.write(data, priority);
+            onWritten(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the socket!");
+        }
+    }
+
+    private void onWritten(byte[] data) {
+        mHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, data).sendToTarget();
+        EventListener listener = mEventListener;
+        if (listener != null)
+            listener.onWrite(data);
     }
 
-    private synchronized void resetThreads() {
-        resetConnectThread();
-        resetConnectedThread();
+    private synchronized void resetTasks() {
+        resetConnectTask();
+        resetConnection();
     }
 
-    private synchronized void resetConnectThread() {
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    private synchronized void resetConnectTask() {
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
     }
 
-    private synchronized void resetConnectedThread() {
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    private synchronized void resetConnection() {
+        if (mConnection != null) {
+            try {
+                mConnection.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the socket!");
+            }
+            mConnection = null;
         }
     }
 
-    private void reconnect() {
+    void reconnect() {
         SPPService.this.start();
     }
 
-    private class ConnectThread extends Thread {
+    /**
+     * Reconnect only if the failed task is still the current one, i.e. it is not cancelled in favour of a newer connection.
+     */
+    private void reconnect(Object task) {
+        synchronized (this) {
+            if (task == mConnectTask || task == mConnection)
+                reconnect();
+        }
+        dispatchStateChanges();
+    }
+
+    private class ConnectTask implements Runnable {
 
-        private final BluetoothSocket mSocket;
+        private final ConnectableTransport mTransport;
         private final BluetoothDevice mDevice;
 
-        public ConnectThread(BluetoothDevice device) {
-            Log.d(TAG, "ConnectThread(" + device + ")");
+        public ConnectTask(TransportFactory factory, BluetoothDevice device) {
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "ConnectTask(" + device + ")");
             mDevice = device;
-            BluetoothSocket tempSocket = null;
+            ConnectableTransport tempTransport = null;
             try {
-                tempSocket = device.createRfcommSocketToServiceRecord(UUID_SPP);
-            } catch (IOException e1) {
-                Log.e(TAG, "Failed to create a secure socket!");
-                try {
-                    tempSocket = device.createInsecureRfcommSocketToServiceRecord(UUID_SPP);
-                } catch (IOException e2) {
-                    Log.e(TAG, "Failed to create an insecure socket!");
-                }
+                tempTransport = factory.createTransport(device);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create a socket!");
             }
-            mSocket = tempSocket;
+            mTransport = tempTransport;
         }
 
         public void run() {
+            BluetoothSerialTrace trace = mTrace;
+            if (trace != null) {
+                trace.record(BluetoothSerialTrace.EVENT_CONNECT_BEGIN, 0);
+                trace.beginSection(BluetoothSerialTrace.SECTION_CONNECT);
+            }
             try {
-                mSocket.connect();
+                if (mTransport == null)
+                    throw new IOException("No socket to connect!");
+                mTransport.connect();
             } catch (IOException e) {
                 Log.e(TAG, "Failed to connect to the socket!");
+                if (trace != null) {
+                    trace.endSection();
+                    trace.record(BluetoothSerialTrace.EVENT_CONNECT_END, 0);
+                }
                 cancel();
-                reconnect(); // Connection failed
+                reconnect(this); // Connection failed
                 return;
             }
+            if (trace != null) {
+                trace.endSection();
+                trace.record(BluetoothSerialTrace.EVENT_CONNECT_END, 1);
+            }
 
             synchronized (SPPService.this) {
-                mConnectThread = null;
+                if (mConnectTask != this) {
+                    cancel(); // Superseded while connecting
+                    return;
+                }
+                mConnectTask = null;
+                connected(mTransport, mDevice);
             }
-
-            connected(mSocket, mDevice);
+            dispatchStateChanges();
         }
 
         public void cancel() {
+            if (mTransport == null)
+                return;
             try {
-                mSocket.close();
+                mTransport.close();
             } catch (IOException e) {
                 Log.e(TAG, "Unable to close the socket!");
             }
@@ -174,63 +528,28 @@ public class SPPService {
 
     }
 
-    private class ConnectedThread extends Thread {
-
-        private final BluetoothSocket mSocket;
-        private final InputStream mInputStream;
-        private final OutputStream mOutputStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "ConnectedThread()");
-
-            mSocket = socket;
-            InputStream tempInputStream = null;
-            OutputStream tempOutputStream = null;
-
-            try {
-                tempInputStream = socket.getInputStream();
-                tempOutputStream = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "I/O streams cannot be created from the socket!");
-            }
-
-            mInputStream = tempInputStream;
-            mOutputStream = tempOutputStream;
-        }
-
-        public void run() {
-            byte[] data = new byte[1024];
-            int length;
+    private class ConnectedCallback implements SerialConnection.Callback {
 
-            while (true) {
-                try {
-                    length = mInputStream.read(data);
-                    byte[] read = new byte[length];
-                    System.arraycopy(data, 0, read, 0, length);
-                    mHandler.obtainMessage(BluetoothSerial.MESSAGE_READ, length, -1, read).sendToTarget();
-                } catch (IOException e) {
-                    reconnect(); // Connection lost
-                    SPPService.this.start();
-                    break;
-                }
-            }
-        }
-
-        public void write(byte[] data) {
-            try {
-                mOutputStream.write(data);
-                mHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, data).sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write the socket!");
-            }
+        @Override
+        public void onRead(byte[] buffer, int offset, int length, long timestamp) {
+            EventListener listener = mEventListener;
+            if (listener != null)
+                listener.onRead(buffer, offset, length, timestamp);
+            if (!mReadDispatch)
+                return;
+            int pending = mPendingReads.incrementAndGet();
+            BluetoothSerialTrace trace = mTrace;
+            if (trace != null)
+                trace.record(BluetoothSerialTrace.EVENT_READ_QUEUE_DEPTH, pending);
+            byte[] read = new byte[length];
+            System.arraycopy(buffer, offset, read, 0, length);
+            // Pass the read time in the two int arguments to avoid allocating for it
+            mHandler.obtainMessage(BluetoothSerial.MESSAGE_READ, (int) (timestamp >>> 32), (int) timestamp, read).sendToTarget();
         }
 
-        public void cancel() {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to close the socket!");
-            }
+        @Override
+        public void onClosed(SerialConnection connection) {
+            reconnect(connection); // Connection lost
         }
 
     }